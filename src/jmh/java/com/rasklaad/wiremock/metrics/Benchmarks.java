@@ -0,0 +1,23 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    // extensions add their registries to the global one, clean it up between trials
+    static void removeGlobalRegistries() {
+        List<MeterRegistry> registries = new ArrayList<>(Metrics.globalRegistry.getRegistries());
+        for (MeterRegistry registry : registries) {
+            Metrics.removeRegistry(registry);
+            registry.close();
+        }
+        Metrics.globalRegistry.clear();
+    }
+}
@@ -0,0 +1,106 @@
+package com.rasklaad.wiremock.metrics;
+
+import com.github.tomakehurst.wiremock.stubbing.ServeEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request overhead of {@link PrometheusMetricsExtension#doGlobalAction} for every configuration mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DoGlobalActionBenchmark {
+    private static final int EVENTS = 1 << 16;
+
+    @Param({"requestUrl", "requestUrlIgnoreQueryParams", "mappingUrlPattern", "stubMapping", "highResolution", "async"})
+    private String mode;
+
+    @Param({"10", "10000"})
+    private int paths;
+
+    private PrometheusMetricsExtension extension;
+    private ServeEvent[] events;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        events = ServeEvents.matched(EVENTS, paths);
+        extension = new PrometheusMetricsExtension(configuration(mode));
+        extension.start();
+        // measure steady state, not meters registration
+        for (int i = 0; i < paths; i++) {
+            extension.doGlobalAction(events[i], null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        extension.stop();
+        Benchmarks.removeGlobalRegistries();
+    }
+
+    private static MetricsConfiguration configuration(String mode) {
+        switch (mode) {
+            case "requestUrl":
+                return PrometheusMetricsExtension.options().useRequestUrl();
+            case "requestUrlIgnoreQueryParams":
+                return PrometheusMetricsExtension.options().useRequestUrl().ignoreQueryParams();
+            case "mappingUrlPattern":
+                return PrometheusMetricsExtension.options().useMappingUrlPattern();
+            case "stubMapping":
+                return PrometheusMetricsExtension.options().useStubMapping();
+            case "highResolution":
+                return PrometheusMetricsExtension.options().useRequestUrl().highResolutionTimings(1, 5, 10, 50, 100);
+            case "async":
+                return PrometheusMetricsExtension.options().useRequestUrl().recordAsynchronously();
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next = ThreadLocalRandom.current().nextInt(EVENTS);
+
+        ServeEvent next(ServeEvent[] events) {
+            next = (next + 1) & (EVENTS - 1);
+            return events[next];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads1(Cursor cursor) {
+        extension.doGlobalAction(cursor.next(events), null);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void threads8(Cursor cursor) {
+        extension.doGlobalAction(cursor.next(events), null);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void threads64(Cursor cursor) {
+        extension.doGlobalAction(cursor.next(events), null);
+    }
+}
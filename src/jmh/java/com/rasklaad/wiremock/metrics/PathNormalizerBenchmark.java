@@ -0,0 +1,64 @@
+package com.rasklaad.wiremock.metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathNormalizerBenchmark {
+
+    @Param({"/orders/42?expand=items&page=1", "/orders/42", "/orders/{id}?expand=items"})
+    private String url;
+
+    private PathNormalizer normalizer;
+    private PathNormalizer templatingNormalizer;
+    private PathTemplates templates;
+
+    @Setup
+    public void setUp() {
+        normalizer = new PathNormalizer();
+        templates = new PathTemplates(Arrays.asList("/users/{name}/orders", "/orders/{id}/items"), true);
+        templatingNormalizer = new PathNormalizer(templates);
+    }
+
+    @Benchmark
+    public String uriCreate() {
+        try {
+            return URI.create(url).getPath();
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
+
+    @Benchmark
+    public String pathNormalizer() {
+        return normalizer.normalize(url);
+    }
+
+    @Benchmark
+    public String templatingPathNormalizer() {
+        return templatingNormalizer.normalize(url);
+    }
+
+    @Benchmark
+    public String pathTemplatesWithoutCache() {
+        return templates.apply(url.substring(0, PathNormalizer.pathEnd(url)));
+    }
+}
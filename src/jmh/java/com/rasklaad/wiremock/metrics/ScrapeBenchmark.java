@@ -0,0 +1,97 @@
+package com.rasklaad.wiremock.metrics;
+
+import com.github.tomakehurst.wiremock.admin.AdminTask;
+import com.github.tomakehurst.wiremock.admin.Router;
+import com.github.tomakehurst.wiremock.http.RequestMethod;
+import com.github.tomakehurst.wiremock.http.ResponseDefinition;
+import com.github.tomakehurst.wiremock.stubbing.ServeEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link MetricsEndpointExtension} scrape. Series are counted as lines of wiremock request metrics in the
+ * exposition, every path/method/status key produces a few hundred of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ScrapeBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    private int series;
+
+    @Param({"identity", "gzip"})
+    private String encoding;
+
+    private AdminTask scrapeTask;
+    private ServeEvent scrapeRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        PrometheusMetricsExtension extension = new PrometheusMetricsExtension(PrometheusMetricsExtension.options().useRequestUrl());
+        MetricsEndpointExtension endpoint = new MetricsEndpointExtension();
+        endpoint.contributeAdminApiRoutes(new Router() {
+            @Override
+            public void add(RequestMethod method, String urlTemplate, Class<? extends AdminTask> adminTaskClass) {
+            }
+
+            @Override
+            public void add(RequestMethod method, String urlTemplate, AdminTask adminTask) {
+                if (urlTemplate.equals("/prometheus-metrics")) {
+                    scrapeTask = adminTask;
+                }
+            }
+        });
+        scrapeRequest = ServeEvents.adminRequest("/__admin/prometheus-metrics", encoding);
+
+        ServeEvent[] first = ServeEvents.matched(1, 1);
+        extension.doGlobalAction(first[0], null);
+        int seriesPerPath = requestSeries(scrape());
+        int paths = Math.max(1, series / seriesPerPath);
+        for (ServeEvent event : ServeEvents.matched(paths, paths)) {
+            extension.doGlobalAction(event, null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Benchmarks.removeGlobalRegistries();
+    }
+
+    private static int requestSeries(String exposition) {
+        int count = 0;
+        for (String line : exposition.split("\n")) {
+            if (line.startsWith("wiremock_request_")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public ResponseDefinition scrapeResponse() {
+        return scrapeTask.execute(null, scrapeRequest, null);
+    }
+
+    private String scrape() {
+        ServeEvent plainRequest = ServeEvents.adminRequest("/__admin/prometheus-metrics", "identity");
+        return new String(scrapeTask.execute(null, plainRequest, null).getByteBody(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,60 @@
+package com.rasklaad.wiremock.metrics;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.common.Json;
+import com.github.tomakehurst.wiremock.common.Timing;
+import com.github.tomakehurst.wiremock.http.HttpHeaders;
+import com.github.tomakehurst.wiremock.http.ImmutableRequest;
+import com.github.tomakehurst.wiremock.http.LoggedResponse;
+import com.github.tomakehurst.wiremock.http.RequestMethod;
+import com.github.tomakehurst.wiremock.stubbing.ServeEvent;
+import com.github.tomakehurst.wiremock.stubbing.StubMapping;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+final class ServeEvents {
+    private static final String BASE_URL = "http://localhost:8080";
+
+    private ServeEvents() {
+    }
+
+    /**
+     * Matched GET requests spread over {@code paths} distinct paths.
+     */
+    static ServeEvent[] matched(int count, int paths) {
+        Random random = new Random(42);
+        StubMapping mapping = WireMock.get(WireMock.urlPathMatching("/orders/[0-9]+"))
+            .willReturn(WireMock.ok())
+            .build();
+        ServeEvent[] events = new ServeEvent[count];
+        for (int i = 0; i < count; i++) {
+            String url = "/orders/" + (i % paths) + "?page=1";
+            events[i] = serveEvent(url, mapping, 200, random.nextInt(50));
+        }
+        return events;
+    }
+
+    private static ServeEvent serveEvent(String url, StubMapping mapping, int status, int processTime) {
+        LoggedRequest request = LoggedRequest.createFrom(ImmutableRequest.create()
+            .withAbsoluteUrl(BASE_URL + url)
+            .withMethod(RequestMethod.GET)
+            .build());
+        Timing timing = Json.read(
+            "{\"addedDelay\":0,\"processTime\":" + processTime + ",\"responseSendTime\":1}",
+            Timing.class
+        );
+        LoggedResponse response = new LoggedResponse(status, HttpHeaders.noHeaders(), null, null, null);
+        return new ServeEvent(UUID.randomUUID(), request, mapping, mapping.getResponse(), response, true, timing, new ConcurrentLinkedQueue<>());
+    }
+
+    static ServeEvent adminRequest(String url, String acceptEncoding) {
+        return ServeEvent.of(LoggedRequest.createFrom(ImmutableRequest.create()
+            .withAbsoluteUrl(BASE_URL + url)
+            .withMethod(RequestMethod.GET)
+            .withHeader("Accept-Encoding", acceptEncoding)
+            .build()));
+    }
+}
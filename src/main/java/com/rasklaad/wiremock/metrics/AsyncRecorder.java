@@ -0,0 +1,188 @@
+package com.rasklaad.wiremock.metrics;
+
+import static com.github.tomakehurst.wiremock.common.LocalNotifier.notifier;
+
+import com.github.tomakehurst.wiremock.stubbing.ServeEvent;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Moves recording off request threads. Request threads copy serve events into preallocated slots of a bounded
+ * ring buffer, background consumers pass them to the recording function.
+ * Idle consumers park until a producer unparks them, so an idle server doesn't wake its consumers.
+ * Wiremock stops extensions only when it's shut down through admin api, so consumers reference the recorder weakly
+ * and exit once it's collected together with a server that was just stopped, which they notice within the idle park.
+ */
+final class AsyncRecorder {
+    private static final long MAX_IDLE_PARK_NANOS = 1_000_000_000L;
+    private static final long FULL_BUFFER_PARK_NANOS = 10_000L;
+
+    private final RequestEvent[] slots;
+    // set when copying a serve event into the slot failed, the slot is published anyway and consumers skip it
+    private final boolean[] skipped;
+    // slot sequence: equals position when the slot is free for a producer, position + 1 when it's ready for a consumer
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong producerPosition = new AtomicLong();
+    private final AtomicLong consumerPosition = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    // consumers that may be parked, producers unpark them after publishing
+    private final AtomicInteger idleConsumers = new AtomicInteger();
+    private final BackPressure backPressure;
+    private final Consumer<RequestEvent> recorder;
+    private final Thread[] consumers;
+    private volatile boolean running;
+
+    AsyncRecorder(int bufferSize, int consumerThreads, BackPressure backPressure, Consumer<RequestEvent> recorder) {
+        int capacity = Integer.highestOneBit(bufferSize - 1) << 1;
+        slots = new RequestEvent[capacity];
+        skipped = new boolean[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new RequestEvent();
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+        this.backPressure = backPressure;
+        this.recorder = recorder;
+        consumers = new Thread[consumerThreads];
+        for (int i = 0; i < consumerThreads; i++) {
+            Thread consumer = new Thread(new ConsumerLoop(this), "wiremock-metrics-recorder-" + i);
+            consumer.setDaemon(true);
+            consumers[i] = consumer;
+        }
+    }
+
+    void start() {
+        running = true;
+        for (Thread consumer : consumers) {
+            consumer.start();
+        }
+    }
+
+    void stop() {
+        running = false;
+        for (Thread consumer : consumers) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * @param matchNanos measured on the serving thread, -1 when unknown
+     * @param respondNanos measured on the serving thread, -1 when unknown
+     * @param traced whether exemplars are enabled
+     * @param traceHeader request header with trace id, null to use serve event id
+     */
+    void publish(ServeEvent serveEvent, long matchNanos, long respondNanos, boolean traced, String traceHeader) {
+        long position;
+        int index;
+        while (true) {
+            position = producerPosition.get();
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (producerPosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                // buffer is full
+                if (backPressure == BackPressure.DROP || !running) {
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.parkNanos(FULL_BUFFER_PARK_NANOS);
+            }
+        }
+        // a claimed slot must be published whatever happens, consumers wait for it otherwise
+        try {
+            slots[index].copyFrom(serveEvent, matchNanos, respondNanos, traced, traceHeader);
+            skipped[index] = false;
+        } catch (RuntimeException e) {
+            skipped[index] = true;
+            dropped.increment();
+            notifier().error("Failed to copy serve event for recording request metrics", e);
+        } finally {
+            sequences.set(index, position + 1);
+        }
+        if (idleConsumers.get() > 0) {
+            for (Thread consumer : consumers) {
+                LockSupport.unpark(consumer);
+            }
+        }
+    }
+
+    long queueDepth() {
+        return Math.max(0, producerPosition.get() - consumerPosition.get());
+    }
+
+    long droppedEvents() {
+        return dropped.sum();
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    private boolean poll() {
+        while (true) {
+            long position = consumerPosition.get();
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference < 0) {
+                return false;
+            }
+            if (difference == 0 && consumerPosition.compareAndSet(position, position + 1)) {
+                try {
+                    if (!skipped[index]) {
+                        recorder.accept(slots[index]);
+                    }
+                } catch (RuntimeException e) {
+                    notifier().error("Failed to record request metrics", e);
+                } finally {
+                    sequences.set(index, position + mask + 1);
+                }
+                return true;
+            }
+        }
+    }
+
+    private static final class ConsumerLoop implements Runnable {
+        private final WeakReference<AsyncRecorder> recorder;
+
+        private ConsumerLoop(AsyncRecorder recorder) {
+            this.recorder = new WeakReference<>(recorder);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                AsyncRecorder current = recorder.get();
+                if (current == null) {
+                    return;
+                }
+                if (current.poll()) {
+                    continue;
+                }
+                if (!current.running) {
+                    return;
+                }
+                AtomicInteger idleConsumers = current.idleConsumers;
+                idleConsumers.incrementAndGet();
+                // an event published after the poll above is either seen here or its producer sees this consumer idle
+                boolean polled = current.poll();
+                // not kept reachable while parked
+                current = null;
+                if (!polled) {
+                    LockSupport.parkNanos(MAX_IDLE_PARK_NANOS);
+                }
+                idleConsumers.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.rasklaad.wiremock.metrics;
+
+public enum BackPressure {
+    /**
+     * Request thread doesn't wait, event is dropped and counted by {@code wiremock_metrics_async_dropped_total}
+     */
+    DROP,
+    /**
+     * Request thread waits until there is free space in the buffer
+     */
+    BLOCK
+}
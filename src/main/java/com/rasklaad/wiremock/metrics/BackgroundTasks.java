@@ -0,0 +1,80 @@
+package com.rasklaad.wiremock.metrics;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.github.tomakehurst.wiremock.common.LocalNotifier.notifier;
+
+/**
+ * Periodic and one-off housekeeping of every server in the process on a single daemon thread. Wiremock stops extensions only
+ * when it's shut down through admin api, so tasks reference their owner weakly and are cancelled once the owner
+ * is collected together with a server that was just stopped.
+ */
+final class BackgroundTasks {
+    private static final ScheduledThreadPoolExecutor EXECUTOR = createExecutor();
+
+    private BackgroundTasks() {
+    }
+
+    private static ScheduledThreadPoolExecutor createExecutor() {
+        // the thread is started with the first task
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "wiremock-metrics-background");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * @param task must not capture the owner, e.g. an unbound method reference, or the owner is never collected
+     * @return cancels the task when the owner is stopped explicitly
+     */
+    static <T> Future<?> scheduleWithFixedDelay(T owner, Consumer<T> task, long periodMillis) {
+        OwnedTask<T> owned = new OwnedTask<>(owner, task);
+        owned.future = EXECUTOR.scheduleWithFixedDelay(owned, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        return owned.future;
+    }
+
+    /**
+     * Runs the task once unless the owner is collected before its turn
+     *
+     * @param task must not capture the owner, e.g. an unbound method reference
+     */
+    static <T> void execute(T owner, Consumer<T> task) {
+        EXECUTOR.execute(new OwnedTask<>(owner, task));
+    }
+
+    private static final class OwnedTask<T> implements Runnable {
+        private final WeakReference<T> owner;
+        private final Consumer<T> task;
+        private volatile Future<?> future;
+
+        private OwnedTask(T owner, Consumer<T> task) {
+            this.owner = new WeakReference<>(owner);
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            T current = owner.get();
+            if (current == null) {
+                Future<?> scheduled = future;
+                if (scheduled != null) {
+                    scheduled.cancel(false);
+                }
+                return;
+            }
+            try {
+                task.accept(current);
+            } catch (RuntimeException e) {
+                // an exception would cancel the task for good
+                notifier().error("Metrics background task failed", e);
+            }
+        }
+    }
+}
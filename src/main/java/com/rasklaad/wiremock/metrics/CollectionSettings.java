@@ -0,0 +1,124 @@
+package com.rasklaad.wiremock.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Part of {@link MetricsConfiguration} that can be changed while the server is running. Instances are immutable,
+ * the extension swaps the whole snapshot, so request threads read consistent settings with a single volatile load.
+ */
+final class CollectionSettings {
+    private static final String TOTAL_TIME = "totalTimeMetricEnabled";
+    private static final String PROCESSING_TIME = "processingTimeMetricEnabled";
+    private static final String SERVE_TIME = "serveTimeMetricEnabled";
+    private static final String RESPONSE_SEND_TIME = "responseSendTimeEnabled";
+    private static final String REQUEST_BODY_SIZE = "requestBodySizeMetricEnabled";
+    private static final String RESPONSE_BODY_SIZE = "responseBodySizeMetricEnabled";
+    private static final String DELAY = "delayMetricsEnabled";
+    private static final String REGISTER_NOT_MATCHED = "registerNotMatchedRequests";
+    private static final String IGNORE_QUERY_PARAMS = "ignoreQueryParams";
+    private static final String ANY_URL_AS_REQUEST_URL = "registerAnyUrlMappingAsRequestUrl";
+
+    final boolean totalTimeMetricEnabled;
+    final boolean processingTimeMetricEnabled;
+    final boolean serveTimeMetricEnabled;
+    final boolean responseSendTimeEnabled;
+    final boolean requestBodySizeMetricEnabled;
+    final boolean responseBodySizeMetricEnabled;
+    final boolean delayMetricsEnabled;
+    final boolean registerNotMatchedRequests;
+    final boolean ignoreQueryParams;
+    final boolean registerAnyUrlMappingAsRequestUrl;
+
+    private CollectionSettings(Map<String, Boolean> values) {
+        totalTimeMetricEnabled = values.get(TOTAL_TIME);
+        processingTimeMetricEnabled = values.get(PROCESSING_TIME);
+        serveTimeMetricEnabled = values.get(SERVE_TIME);
+        responseSendTimeEnabled = values.get(RESPONSE_SEND_TIME);
+        requestBodySizeMetricEnabled = values.get(REQUEST_BODY_SIZE);
+        responseBodySizeMetricEnabled = values.get(RESPONSE_BODY_SIZE);
+        delayMetricsEnabled = values.get(DELAY);
+        registerNotMatchedRequests = values.get(REGISTER_NOT_MATCHED);
+        ignoreQueryParams = values.get(IGNORE_QUERY_PARAMS);
+        registerAnyUrlMappingAsRequestUrl = values.get(ANY_URL_AS_REQUEST_URL);
+    }
+
+    static CollectionSettings from(MetricsConfiguration configuration) {
+        Map<String, Boolean> values = new LinkedHashMap<>();
+        values.put(TOTAL_TIME, configuration.isTotalTimeMetricEnabled());
+        values.put(PROCESSING_TIME, configuration.isProcessingTimeMetricEnabled());
+        values.put(SERVE_TIME, configuration.isServeTimeMetricEnabled());
+        values.put(RESPONSE_SEND_TIME, configuration.isResponseSendTimeEnabled());
+        values.put(REQUEST_BODY_SIZE, configuration.isRequestBodySizeMetricEnabled());
+        values.put(RESPONSE_BODY_SIZE, configuration.isResponseBodySizeMetricEnabled());
+        values.put(DELAY, configuration.isDelayMetricsEnabled());
+        values.put(REGISTER_NOT_MATCHED, configuration.shouldRegisterNotMatchedRequests());
+        values.put(IGNORE_QUERY_PARAMS, configuration.shouldIgnoreQueryParams());
+        values.put(ANY_URL_AS_REQUEST_URL, configuration.shouldRegisterAnyUrlMappingAsRequestUrl());
+        return new CollectionSettings(values);
+    }
+
+    /**
+     * @param changes setting names mapped to new values, settings not mentioned keep their values
+     * @throws IllegalArgumentException when a name is unknown or a value is not boolean
+     */
+    CollectionSettings with(Map<String, ?> changes) {
+        Map<String, Boolean> values = toMap();
+        for (Map.Entry<String, ?> change : changes.entrySet()) {
+            if (!values.containsKey(change.getKey())) {
+                throw new IllegalArgumentException("Unknown setting " + change.getKey() + ", expected one of " + values.keySet());
+            }
+            if (!(change.getValue() instanceof Boolean)) {
+                throw new IllegalArgumentException("Setting " + change.getKey() + " must be true or false, got " + change.getValue());
+            }
+            values.put(change.getKey(), (Boolean) change.getValue());
+        }
+        return new CollectionSettings(values);
+    }
+
+    /**
+     * @return true when series recorded under these settings would get different path labels under other ones
+     */
+    boolean labelsPathsDifferentlyThan(CollectionSettings other) {
+        return ignoreQueryParams != other.ignoreQueryParams
+            || registerAnyUrlMappingAsRequestUrl != other.registerAnyUrlMappingAsRequestUrl;
+    }
+
+    /**
+     * @return true when the same meters are recorded for a request under both settings
+     */
+    boolean recordsSameMetersAs(CollectionSettings other) {
+        return totalTimeMetricEnabled == other.totalTimeMetricEnabled
+            && processingTimeMetricEnabled == other.processingTimeMetricEnabled
+            && serveTimeMetricEnabled == other.serveTimeMetricEnabled
+            && responseSendTimeEnabled == other.responseSendTimeEnabled
+            && requestBodySizeMetricEnabled == other.requestBodySizeMetricEnabled
+            && responseBodySizeMetricEnabled == other.responseBodySizeMetricEnabled
+            && delayMetricsEnabled == other.delayMetricsEnabled;
+    }
+
+    Map<String, Boolean> toMap() {
+        Map<String, Boolean> values = new LinkedHashMap<>();
+        values.put(TOTAL_TIME, totalTimeMetricEnabled);
+        values.put(PROCESSING_TIME, processingTimeMetricEnabled);
+        values.put(SERVE_TIME, serveTimeMetricEnabled);
+        values.put(RESPONSE_SEND_TIME, responseSendTimeEnabled);
+        values.put(REQUEST_BODY_SIZE, requestBodySizeMetricEnabled);
+        values.put(RESPONSE_BODY_SIZE, responseBodySizeMetricEnabled);
+        values.put(DELAY, delayMetricsEnabled);
+        values.put(REGISTER_NOT_MATCHED, registerNotMatchedRequests);
+        values.put(IGNORE_QUERY_PARAMS, ignoreQueryParams);
+        values.put(ANY_URL_AS_REQUEST_URL, registerAnyUrlMappingAsRequestUrl);
+        return values;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CollectionSettings && toMap().equals(((CollectionSettings) other).toMap());
+    }
+
+    @Override
+    public int hashCode() {
+        return toMap().hashCode();
+    }
+}
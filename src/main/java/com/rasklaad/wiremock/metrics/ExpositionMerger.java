@@ -0,0 +1,243 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.prometheus.client.Collector;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Merges prometheus text expositions of several servers into one. Series with the same name and labels are merged
+ * into a single sample: counters, histogram buckets, counts and sums are added up, while maximums and summary
+ * quantiles can't be added up and keep the highest value. Other gauges, e.g. heap used or open connections, mean
+ * nothing when added up, so they are not merged but passed through per server with an {@code instance} label. A gauge
+ * the server already tags with {@code instance} keeps that value as {@code exported_instance}, as prometheus does when
+ * scraped labels clash with target labels, so servers reporting the same instance don't overwrite each other.
+ * Series are identified by their text, so servers must export labels in the same order, which holds for servers
+ * with the same configuration. Histograms are only meaningful when all servers use the same buckets. Not thread safe.
+ */
+final class ExpositionMerger {
+    private static final String[] SAMPLE_SUFFIXES = {"_bucket", "_count", "_sum", "_created", "_total"};
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * Adds exposition whose gauges are passed through as they are
+     */
+    void add(String exposition) {
+        add(null, exposition);
+    }
+
+    /**
+     * @param instance labels gauges of the exposition, null to pass them through without the label
+     */
+    void add(String instance, String exposition) {
+        Family family = null;
+        int start = 0;
+        while (start < exposition.length()) {
+            int end = exposition.indexOf('\n', start);
+            if (end < 0) {
+                end = exposition.length();
+            }
+            String line = exposition.substring(start, end).trim();
+            start = end + 1;
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.charAt(0) == '#') {
+                family = header(line, family);
+            } else {
+                family = sample(instance, line, family);
+            }
+        }
+    }
+
+    /**
+     * @return family following samples belong to
+     */
+    private Family header(String line, Family current) {
+        String[] parts = line.split(" ", 4);
+        if (parts.length < 3 || !(parts[1].equals("HELP") || parts[1].equals("TYPE"))) {
+            return current;
+        }
+        Family family = families.computeIfAbsent(parts[2], Family::new);
+        String text = parts.length == 4 ? parts[3] : "";
+        if (parts[1].equals("HELP")) {
+            if (family.help == null) {
+                family.help = text;
+            }
+        } else if (family.type == null) {
+            family.type = text;
+        }
+        return family;
+    }
+
+    private Family sample(String instance, String line, Family current) {
+        int nameEnd = 0;
+        while (nameEnd < line.length() && line.charAt(nameEnd) != '{' && line.charAt(nameEnd) != ' ') {
+            nameEnd++;
+        }
+        int seriesEnd = nameEnd < line.length() && line.charAt(nameEnd) == '{' ? labelsEnd(line, nameEnd) : nameEnd;
+        if (seriesEnd < 0) {
+            return current;
+        }
+        String name = line.substring(0, nameEnd);
+        // timestamp may follow the value
+        String[] valueAndTimestamp = line.substring(seriesEnd).trim().split(" ", 2);
+        double value;
+        try {
+            value = parse(valueAndTimestamp[0]);
+        } catch (NumberFormatException e) {
+            return current;
+        }
+        Family family = current != null && current.hasSample(name)
+            ? current
+            : families.computeIfAbsent(name, Family::new);
+        family.merge(name, line.substring(0, seriesEnd), value, instance);
+        return family;
+    }
+
+    /**
+     * @return index after closing brace, -1 when labels are not closed
+     */
+    private static int labelsEnd(String line, int openingBrace) {
+        boolean quoted = false;
+        for (int i = openingBrace + 1; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted && c == '\\') {
+                i++;
+            } else if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && c == '}') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static double parse(String value) {
+        switch (value) {
+            case "+Inf":
+                return Double.POSITIVE_INFINITY;
+            case "-Inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                return Double.parseDouble(value);
+        }
+    }
+
+    void write(Writer writer) throws IOException {
+        for (Family family : families.values()) {
+            if (family.samples.isEmpty()) {
+                continue;
+            }
+            if (family.help != null) {
+                writer.write("# HELP " + family.name + " " + family.help + "\n");
+            }
+            if (family.type != null) {
+                writer.write("# TYPE " + family.name + " " + family.type + "\n");
+            }
+            for (Map.Entry<String, Double> sample : family.samples.entrySet()) {
+                writer.write(sample.getKey());
+                writer.write(' ');
+                writer.write(Collector.doubleToGoString(sample.getValue()));
+                writer.write('\n');
+            }
+        }
+    }
+
+    static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Family {
+        private final String name;
+        private String help;
+        private String type;
+        // series text including labels to merged value
+        private final Map<String, Double> samples = new LinkedHashMap<>();
+
+        private Family(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param sampleName exactly the family name or the name followed by one of sample suffixes, so a family
+         * doesn't take samples of another family it is a prefix of
+         */
+        private boolean hasSample(String sampleName) {
+            if (!sampleName.startsWith(name)) {
+                return false;
+            }
+            if (sampleName.length() == name.length()) {
+                return true;
+            }
+            for (String suffix : SAMPLE_SUFFIXES) {
+                if (sampleName.length() == name.length() + suffix.length() && sampleName.endsWith(suffix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void merge(String sampleName, String series, double value, String instance) {
+            if (!addsUp(sampleName) && !keepsHighest(sampleName)) {
+                samples.put(instance == null ? series : withInstance(series, instance), value);
+                return;
+            }
+            Double merged = samples.get(series);
+            if (merged == null || merged.isNaN()) {
+                samples.put(series, value);
+            } else if (!Double.isNaN(value)) {
+                samples.put(series, keepsHighest(sampleName) ? Math.max(merged, value) : merged + value);
+            }
+        }
+
+        private boolean addsUp(String sampleName) {
+            return "counter".equals(type) || "histogram".equals(type) || "summary".equals(type) && !sampleName.equals(name);
+        }
+
+        private boolean keepsHighest(String sampleName) {
+            return "summary".equals(type) && sampleName.equals(name)
+                || "gauge".equals(type) && name.endsWith("_max");
+        }
+
+        /**
+         * @return series with instance label added first, instance label of the server renamed to exported_instance
+         */
+        private static String withInstance(String series, String instance) {
+            String label = "instance=\"" + escapeLabelValue(instance) + "\",";
+            int labelsStart = series.indexOf('{');
+            if (labelsStart < 0) {
+                return series + "{" + label + "}";
+            }
+            int own = labelIndex(series, labelsStart, "instance");
+            String labels = own < 0
+                ? series.substring(labelsStart + 1)
+                : series.substring(labelsStart + 1, own) + "exported_" + series.substring(own);
+            return series.substring(0, labelsStart + 1) + label + labels;
+        }
+
+        /**
+         * @return index of the label name, -1 when series doesn't have the label
+         */
+        private static int labelIndex(String series, int labelsStart, String labelName) {
+            boolean quoted = false;
+            int nameStart = labelsStart + 1;
+            for (int i = nameStart; i < series.length(); i++) {
+                char c = series.charAt(i);
+                if (quoted && c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    quoted = !quoted;
+                } else if (!quoted && c == '=' && series.startsWith(labelName, nameStart) && i - nameStart == labelName.length()) {
+                    return nameStart;
+                } else if (!quoted && c == ',') {
+                    nameStart = i + 1;
+                }
+            }
+            return -1;
+        }
+    }
+}
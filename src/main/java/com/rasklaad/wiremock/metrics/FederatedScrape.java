@@ -0,0 +1,100 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Scrape of this server merged with scrapes of peers. Peers are requested in parallel, so a scrape takes at most
+ * the timeout however many peers there are. A peer that fails or doesn't answer in time is left out of the merge
+ * and reported as down by {@code wiremock_federation_peer_up}. Gauges are not added up but kept per server, labelled
+ * with {@code instance="local"} for this server and with the peer url for peers.
+ */
+final class FederatedScrape {
+    private static final String LOCAL_INSTANCE = "local";
+
+    private final List<URI> peers = new ArrayList<>();
+    private final Duration timeout;
+    private final HttpClient client;
+
+    FederatedScrape(List<String> peerUrls, Duration timeout) {
+        for (String peerUrl : peerUrls) {
+            peers.add(URI.create(peerUrl));
+        }
+        this.timeout = timeout;
+        client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(timeout)
+            .build();
+    }
+
+    /**
+     * @param local exposition of this server in text format
+     */
+    void scrape(String local, Writer writer) throws IOException {
+        List<CompletableFuture<String>> responses = new ArrayList<>(peers.size());
+        for (URI peer : peers) {
+            responses.add(fetch(peer));
+        }
+        ExpositionMerger merger = new ExpositionMerger();
+        merger.add(LOCAL_INSTANCE, local);
+        StringBuilder peersUp = new StringBuilder()
+            .append("# HELP wiremock_federation_peer_up Whether peer metrics were scraped and merged into this scrape\n")
+            .append("# TYPE wiremock_federation_peer_up gauge\n");
+        for (int i = 0; i < peers.size(); i++) {
+            String exposition = responses.get(i).join();
+            if (exposition != null) {
+                merger.add(peers.get(i).toString(), exposition);
+            }
+            peersUp.append("wiremock_federation_peer_up{peer=\"").append(ExpositionMerger.escapeLabelValue(peers.get(i).toString()))
+                .append("\",} ").append(exposition == null ? "0.0" : "1.0").append('\n');
+        }
+        merger.add(peersUp.toString());
+        merger.write(writer);
+    }
+
+    /**
+     * @return future of peer exposition, completed with null when the peer failed
+     */
+    private CompletableFuture<String> fetch(URI peer) {
+        HttpRequest request = HttpRequest.newBuilder(peer)
+            .timeout(timeout)
+            .header("Accept", TextFormat.CONTENT_TYPE_004)
+            .header("Accept-Encoding", "gzip")
+            .GET()
+            .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+            .thenApply(FederatedScrape::exposition)
+            .exceptionally(e -> null);
+    }
+
+    private static String exposition(HttpResponse<byte[]> response) {
+        if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+            return null;
+        }
+        boolean gzip = response.headers().firstValue("Content-Encoding").filter("gzip"::equalsIgnoreCase).isPresent();
+        if (!gzip) {
+            return new String(response.body(), StandardCharsets.UTF_8);
+        }
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(response.body()))) {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.PackedHistogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * High resolution timings. Every series records into a couple of striped HdrHistogram recorders, so request threads
+ * don't contend on the same counters, recorders are merged when metrics are scraped.
+ * Wiremock timings are whole milliseconds and histograms keep them as they are: quantiles are exact below 256ms and
+ * within 1% above. Quantiles cover the last one to two minutes. Count, sum and buckets are cumulative and counted
+ * exactly with adders, so a bucket never counts values above its bound, fractional bounds such as 0.5ms included.
+ * A series holds six packed histograms, two per recorder stripe and two windows, which grow with the number of distinct
+ * timings: about 2KB for timings within 50ms, up to about 20KB for timings spread over a minute. Windows are merged
+ * into a single scratch histogram shared by all series to take quantiles.
+ * Exported straight to prometheus client registry as {@code <timing>_hdr_ms} summary and,
+ * when buckets are configured, {@code <timing>_hdr_ms_buckets} histogram.
+ */
+final class HdrTimings extends Collector {
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    // values below 256 (ms) are exact, larger ones within 1%
+    private static final int SIGNIFICANT_DIGITS = 2;
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int STRIPES = Math.min(2, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+    private static final Map<CollectorRegistry, HdrTimings> COLLECTORS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Map<String, Set<Series>> series = new ConcurrentHashMap<>();
+    private final Map<String, String> descriptions = new ConcurrentHashMap<>();
+    private final double[] buckets;
+    // guarded by this, both windows of a series are merged here to take quantiles
+    private final Histogram recent = new Histogram(SIGNIFICANT_DIGITS);
+
+    private HdrTimings(double[] buckets) {
+        this.buckets = buckets;
+    }
+
+    /**
+     * One collector per registry, servers sharing a registry must not export the same families twice
+     */
+    static HdrTimings forRegistry(CollectorRegistry registry, double[] buckets) {
+        synchronized (COLLECTORS) {
+            return COLLECTORS.computeIfAbsent(registry, key -> new HdrTimings(buckets).register(key));
+        }
+    }
+
+    /**
+     * @param name prometheus metric name, e.g. {@code wiremock_request_totalTime_hdr_ms}
+     */
+    Series create(String name, String description, List<String> labelNames, List<String> labelValues) {
+        Series created = new Series(name, labelNames, labelValues, buckets);
+        descriptions.putIfAbsent(name, description);
+        series.computeIfAbsent(name, key -> ConcurrentHashMap.newKeySet()).add(created);
+        return created;
+    }
+
+    void remove(Series removed) {
+        Set<Series> named = series.get(removed.name);
+        if (named != null) {
+            named.remove(removed);
+        }
+    }
+
+    @Override
+    public synchronized List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> families = new ArrayList<>();
+        long now = System.nanoTime();
+        for (Map.Entry<String, Set<Series>> entry : series.entrySet()) {
+            String name = entry.getKey();
+            List<MetricFamilySamples.Sample> summarySamples = new ArrayList<>();
+            List<MetricFamilySamples.Sample> histogramSamples = new ArrayList<>();
+            for (Series current : entry.getValue()) {
+                current.collect(now, summarySamples, histogramSamples, recent);
+            }
+            families.add(new MetricFamilySamples(name, Type.SUMMARY, descriptions.get(name), summarySamples));
+            if (buckets.length > 0) {
+                families.add(new MetricFamilySamples(name + "_buckets", Type.HISTOGRAM, descriptions.get(name), histogramSamples));
+            }
+        }
+        return families;
+    }
+
+    static final class Series {
+        private final String name;
+        private final List<String> labelNames;
+        private final List<String> labelValues;
+        private final Recorder[] recorders = new Recorder[STRIPES];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        // bucket bounds in ms, sorted
+        private final double[] buckets;
+        // values up to each bucket bound and above the previous one
+        private final LongAdder[] bucketCounts;
+        // guarded by this, updated on scrape only
+        private Histogram currentWindow = new PackedHistogram(SIGNIFICANT_DIGITS);
+        private Histogram previousWindow = new PackedHistogram(SIGNIFICANT_DIGITS);
+        private long windowStart = System.nanoTime();
+        // recorder only takes back histograms it returned
+        private final Histogram[] intervals = new Histogram[STRIPES];
+
+        private Series(String name, List<String> labelNames, List<String> labelValues, double[] buckets) {
+            this.name = name;
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+            for (int i = 0; i < recorders.length; i++) {
+                recorders[i] = new Recorder(SIGNIFICANT_DIGITS, true);
+            }
+            this.buckets = buckets;
+            bucketCounts = new LongAdder[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                bucketCounts[i] = new LongAdder();
+            }
+        }
+
+        String name() {
+            return name;
+        }
+
+        void record(long millis) {
+            recorders[(int) Thread.currentThread().getId() & (STRIPES - 1)].recordValue(millis);
+            // counted before its bucket, so a scrape reading buckets first never sees more in a bucket than in total
+            count.increment();
+            sum.add(millis);
+            int bucket = bucketIndex(millis);
+            if (bucket < bucketCounts.length) {
+                bucketCounts[bucket].increment();
+            }
+        }
+
+        /**
+         * @return index of the lowest bucket bound not below the value, bucket count when the value is above all of them
+         */
+        private int bucketIndex(long millis) {
+            int low = 0;
+            int high = buckets.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (buckets[middle] < millis) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private synchronized void collect(long now, List<MetricFamilySamples.Sample> summarySamples,
+                                          List<MetricFamilySamples.Sample> histogramSamples, Histogram recent) {
+            for (int i = 0; i < recorders.length; i++) {
+                Histogram interval = recorders[i].getIntervalHistogram(intervals[i]);
+                intervals[i] = interval;
+                currentWindow.add(interval);
+            }
+            if (now - windowStart >= WINDOW_NANOS) {
+                Histogram reused = previousWindow;
+                previousWindow = currentWindow;
+                currentWindow = reused;
+                currentWindow.reset();
+                windowStart = now;
+            }
+            recent.reset();
+            recent.add(previousWindow);
+            recent.add(currentWindow);
+
+            for (double quantile : QUANTILES) {
+                summarySamples.add(sample(name, "quantile", Collector.doubleToGoString(quantile),
+                    recent.getTotalCount() == 0 ? Double.NaN : recent.getValueAtPercentile(quantile * 100)));
+            }
+            long[] cumulativeBuckets = new long[bucketCounts.length];
+            long cumulative = 0;
+            for (int i = 0; i < bucketCounts.length; i++) {
+                cumulative += bucketCounts[i].sum();
+                cumulativeBuckets[i] = cumulative;
+            }
+            // read after buckets, may include values recorded since, scrape is not atomic across series anyway
+            double count = this.count.sum();
+            double sum = this.sum.sum();
+            summarySamples.add(new MetricFamilySamples.Sample(name + "_count", labelNames, labelValues, count));
+            summarySamples.add(new MetricFamilySamples.Sample(name + "_sum", labelNames, labelValues, sum));
+
+            if (buckets.length > 0) {
+                String bucketName = name + "_buckets";
+                for (int i = 0; i < buckets.length; i++) {
+                    histogramSamples.add(sample(bucketName + "_bucket", "le", Collector.doubleToGoString(buckets[i]), cumulativeBuckets[i]));
+                }
+                histogramSamples.add(sample(bucketName + "_bucket", "le", "+Inf", count));
+                histogramSamples.add(new MetricFamilySamples.Sample(bucketName + "_count", labelNames, labelValues, count));
+                histogramSamples.add(new MetricFamilySamples.Sample(bucketName + "_sum", labelNames, labelValues, sum));
+            }
+        }
+
+        private MetricFamilySamples.Sample sample(String sampleName, String extraLabel, String extraValue, double value) {
+            List<String> names = new ArrayList<>(labelNames);
+            names.add(extraLabel);
+            List<String> values = new ArrayList<>(labelValues);
+            values.add(extraValue);
+            return new MetricFamilySamples.Sample(sampleName, names, values, value);
+        }
+    }
+}
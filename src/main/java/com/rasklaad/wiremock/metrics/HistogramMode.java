@@ -0,0 +1,102 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+
+import java.util.Arrays;
+
+/**
+ * Defines how a timing distribution is published
+ */
+public final class HistogramMode {
+    private static final HistogramMode PERCENTILE_HISTOGRAM = new HistogramMode(Type.PERCENTILE_HISTOGRAM, new double[0]);
+    private static final HistogramMode SUMMARY = new HistogramMode(Type.SUMMARY, new double[0]);
+
+    private final Type type;
+    private final double[] values;
+
+    private HistogramMode(Type type, double[] values) {
+        this.type = type;
+        this.values = values;
+    }
+
+    /**
+     * Micrometer percentile histogram, ~70 buckets per series unless limited by maximumMetricExpectedValue
+     */
+    public static HistogramMode percentileHistogram() {
+        return PERCENTILE_HISTOGRAM;
+    }
+
+    /**
+     * Histogram with given bucket boundaries only, in milliseconds
+     */
+    public static HistogramMode sloBuckets(double... boundaries) {
+        return new HistogramMode(Type.SLO_BUCKETS, boundaries.clone());
+    }
+
+    /**
+     * Percentiles computed in wiremock and published as quantiles, e.g. 0.5, 0.95, 0.99.
+     * Can't be aggregated across series
+     */
+    public static HistogramMode percentiles(double... percentiles) {
+        return new HistogramMode(Type.PERCENTILES, percentiles.clone());
+    }
+
+    /**
+     * Count, sum and max only
+     */
+    public static HistogramMode summary() {
+        return SUMMARY;
+    }
+
+    void validate(String timing) {
+        if (type == Type.SLO_BUCKETS) {
+            if (values.length == 0) {
+                throw new IllegalStateException("At least one slo bucket is required for " + timing);
+            }
+            for (double boundary : values) {
+                if (!(boundary > 0)) {
+                    throw new IllegalStateException("Slo buckets must be positive for " + timing + ", got " + Arrays.toString(values));
+                }
+            }
+        }
+        if (type == Type.PERCENTILES) {
+            if (values.length == 0) {
+                throw new IllegalStateException("At least one percentile is required for " + timing);
+            }
+            for (double percentile : values) {
+                if (!(percentile >= 0 && percentile <= 1)) {
+                    throw new IllegalStateException("Percentiles must be between 0 and 1 for " + timing + ", got " + Arrays.toString(values));
+                }
+            }
+        }
+    }
+
+    DistributionSummary.Builder apply(DistributionSummary.Builder builder, Double maximumExpectedValue) {
+        switch (type) {
+            case PERCENTILE_HISTOGRAM:
+                return builder
+                    .publishPercentileHistogram()
+                    .maximumExpectedValue(maximumExpectedValue);
+            case SLO_BUCKETS:
+                return builder.serviceLevelObjectives(values);
+            case PERCENTILES:
+                return builder.publishPercentiles(values);
+            default:
+                return builder;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return type == Type.SLO_BUCKETS || type == Type.PERCENTILES
+            ? type + Arrays.toString(values)
+            : type.toString();
+    }
+
+    private enum Type {
+        PERCENTILE_HISTOGRAM,
+        SLO_BUCKETS,
+        PERCENTILES,
+        SUMMARY
+    }
+}
@@ -0,0 +1,101 @@
+package com.rasklaad.wiremock.metrics;
+
+import com.github.tomakehurst.wiremock.core.Options;
+import com.github.tomakehurst.wiremock.http.ThreadPoolFactory;
+import com.github.tomakehurst.wiremock.http.trafficlistener.WiremockNetworkTrafficListener;
+import com.github.tomakehurst.wiremock.jetty.QueuedThreadPoolFactory;
+import wiremock.org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gives the endpoint access to jetty thread pool and connections of a server, wiremock doesn't expose them otherwise.
+ * Pass one instance per server as both thread pool factory and network traffic listener:
+ * <pre>
+ * JettyMetrics jettyMetrics = new JettyMetrics();
+ * new WireMockConfiguration().threadPoolFactory(jettyMetrics).networkTrafficListener(jettyMetrics);
+ * </pre>
+ * Thread pool is sampled when metrics are scraped, connections are counted when they are opened and closed.
+ * Requires wiremock-standalone: the thread pool factory returns its relocated jetty types. The pool is sampled through
+ * its getters, so any pool with the getters of QueuedThreadPool is sampled too.
+ */
+public class JettyMetrics implements ThreadPoolFactory, WiremockNetworkTrafficListener {
+    private final ThreadPoolFactory threadPoolFactory;
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final Map<String, Method> getters = new ConcurrentHashMap<>();
+    // jetty QueuedThreadPool or any pool with the same getters, null until the server builds it
+    private volatile Object threadPool;
+
+    public JettyMetrics() {
+        this(new QueuedThreadPoolFactory());
+    }
+
+    /**
+     * @param threadPoolFactory builds the actual pool, only jetty QueuedThreadPool is sampled
+     */
+    public JettyMetrics(ThreadPoolFactory threadPoolFactory) {
+        this.threadPoolFactory = threadPoolFactory;
+    }
+
+    @Override
+    public ThreadPool buildThreadPool(Options options) {
+        ThreadPool built = threadPoolFactory.buildThreadPool(options);
+        threadPool = built;
+        return built;
+    }
+
+    @Override
+    public void opened(Socket socket) {
+        opened.increment();
+    }
+
+    @Override
+    public void incoming(Socket socket, ByteBuffer bytes) {
+    }
+
+    @Override
+    public void outgoing(Socket socket, ByteBuffer bytes) {
+    }
+
+    @Override
+    public void closed(Socket socket) {
+        closed.increment();
+    }
+
+    /**
+     * @param getter int getter of QueuedThreadPool, e.g. {@code getBusyThreads}
+     * @return NaN until the server builds its thread pool, or when the pool has no such getter
+     */
+    double threadPoolValue(String getter) {
+        Object pool = threadPool;
+        if (pool == null) {
+            return Double.NaN;
+        }
+        try {
+            Method method = getters.get(getter);
+            if (method == null) {
+                method = pool.getClass().getMethod(getter);
+                getters.put(getter, method);
+            }
+            return ((Number) method.invoke(pool)).doubleValue();
+        } catch (ReflectiveOperationException | ClassCastException | SecurityException e) {
+            return Double.NaN;
+        }
+    }
+
+    long openedConnections() {
+        return opened.sum();
+    }
+
+    long currentConnections() {
+        // closed is read first, so a connection closed in between doesn't make the difference negative
+        long closedConnections = closed.sum();
+        return opened.sum() - closedConnections;
+    }
+}
@@ -0,0 +1,34 @@
+package com.rasklaad.wiremock.metrics;
+
+public enum JvmMetrics {
+    /**
+     * No jvm and system metrics
+     */
+    NONE,
+    /**
+     * Memory, threads, processor and uptime, no GC notification listeners
+     */
+    MINIMAL,
+    /**
+     * Minimal set plus GC, heap pressure, class loader and jvm info metrics
+     */
+    ALL;
+
+    /**
+     * System property to choose jvm metrics when extension is created with default configuration,
+     * e.g. {@code -Dwiremock.metrics.jvm=minimal} for standalone process
+     */
+    public static final String PROPERTY = "wiremock.metrics.jvm";
+
+    static JvmMetrics fromSystemProperty() {
+        String value = System.getProperty(PROPERTY);
+        if (value == null || value.trim().isEmpty()) {
+            return ALL;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Unknown " + PROPERTY + " value: " + value + ", expected one of none, minimal, all");
+        }
+    }
+}
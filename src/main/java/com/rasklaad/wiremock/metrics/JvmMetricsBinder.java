@@ -0,0 +1,108 @@
+package com.rasklaad.wiremock.metrics;
+
+import com.github.tomakehurst.wiremock.common.LocalNotifier;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.jvm.ClassLoaderMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmHeapPressureMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmInfoMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
+import io.micrometer.core.instrument.binder.system.ProcessorMetrics;
+import io.micrometer.core.instrument.binder.system.UptimeMetrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Binds jvm metrics to a registry on first scrape. Jvm metrics are per process, so there is one binder
+ * per registry however many servers share it, GC listeners are closed when the last server stops.
+ * Binder doesn't keep its registry, but GC listeners do until they are closed, so servers must release it
+ * even when they are stopped without extensions being stopped.
+ */
+final class JvmMetricsBinder {
+    private static final Map<MeterRegistry, JvmMetricsBinder> BINDERS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final JvmMetrics jvmMetrics;
+    private final List<AutoCloseable> closeables = new ArrayList<>();
+    private int users;
+    private volatile boolean bound;
+
+    private JvmMetricsBinder(JvmMetrics jvmMetrics) {
+        this.jvmMetrics = jvmMetrics;
+    }
+
+    /**
+     * First server registers the set of jvm metrics for a registry, others reuse it
+     */
+    static JvmMetricsBinder acquire(MeterRegistry registry, JvmMetrics jvmMetrics) {
+        synchronized (BINDERS) {
+            JvmMetricsBinder binder = BINDERS.computeIfAbsent(registry, key -> new JvmMetricsBinder(jvmMetrics));
+            binder.users++;
+            return binder;
+        }
+    }
+
+    static void bindTo(MeterRegistry registry) {
+        JvmMetricsBinder binder = BINDERS.get(registry);
+        if (binder != null) {
+            binder.bind(registry);
+        }
+    }
+
+    private void bind(MeterRegistry registry) {
+        if (bound) {
+            return;
+        }
+        synchronized (this) {
+            if (bound || jvmMetrics == JvmMetrics.NONE) {
+                return;
+            }
+            bind(registry, new JvmMemoryMetrics());
+            bind(registry, new JvmThreadMetrics());
+            bind(registry, new ProcessorMetrics());
+            bind(registry, new UptimeMetrics());
+            if (jvmMetrics == JvmMetrics.ALL) {
+                bind(registry, new JvmGcMetrics());
+                bind(registry, new JvmHeapPressureMetrics());
+                bind(registry, new ClassLoaderMetrics());
+                bind(registry, new JvmInfoMetrics());
+            }
+            bound = true;
+        }
+    }
+
+    private void bind(MeterRegistry registry, MeterBinder binder) {
+        binder.bindTo(registry);
+        if (binder instanceof AutoCloseable) {
+            closeables.add((AutoCloseable) binder);
+        }
+    }
+
+    void release(MeterRegistry registry) {
+        synchronized (BINDERS) {
+            if (--users > 0) {
+                return;
+            }
+            BINDERS.remove(registry);
+        }
+        synchronized (this) {
+            for (AutoCloseable closeable : closeables) {
+                try {
+                    closeable.close();
+                } catch (Exception e) {
+                    LocalNotifier.notifier().error("Failed to close jvm metrics", e);
+                }
+            }
+            closeables.clear();
+        }
+    }
+
+    boolean isBound() {
+        return bound;
+    }
+}
@@ -0,0 +1,211 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Request rate, error rate and latency percentiles of every path (or stub) over the last 1, 10 and 60 seconds.
+ * Each series keeps a ring of one-second slots with a small log-linear latency histogram,
+ * so memory depends on number of series only, not on traffic.
+ */
+final class LiveStats {
+    static final int[] WINDOWS_SECONDS = {1, 10, 60};
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+    private static final Map<MeterRegistry, LiveStats> STATS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Map<MetersGroup, Window> windows = new ConcurrentHashMap<>();
+
+    /**
+     * One instance per registry, so the endpoint finds stats of servers it scrapes
+     */
+    static LiveStats forRegistry(MeterRegistry registry) {
+        return STATS.computeIfAbsent(registry, key -> new LiveStats());
+    }
+
+    /**
+     * @return null when live stats are not enabled for any server using the registry
+     */
+    static LiveStats find(MeterRegistry registry) {
+        return STATS.get(registry);
+    }
+
+    Window window(MetersGroup group, String instance) {
+        return windows.computeIfAbsent(group, key -> new Window(key, instance));
+    }
+
+    /**
+     * Drops windows of evicted paths and removed stubs
+     */
+    void purge() {
+        windows.keySet().removeIf(MetersGroup::isRetired);
+    }
+
+    List<Map<String, Object>> snapshot() {
+        purge();
+        long second = currentSecond();
+        List<Map<String, Object>> series = new ArrayList<>();
+        for (Window window : windows.values()) {
+            Map<String, Object> snapshot = window.snapshot(second);
+            if (snapshot != null) {
+                series.add(snapshot);
+            }
+        }
+        return series;
+    }
+
+    static long currentSecond() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+
+    static final class Window {
+        // one more than the longest window: current second is still being filled
+        private static final int SLOTS = 64;
+        // values below 8ms get their own bucket, above that 4 buckets per power of two, longer than ~17 minutes land in the last one
+        private static final int EXACT_BUCKETS = 8;
+        private static final int SUB_BUCKETS = 4;
+        private static final int MAX_MAGNITUDE = 20;
+        private static final int BUCKETS = EXACT_BUCKETS + (MAX_MAGNITUDE - 2) * SUB_BUCKETS;
+
+        private final MetersGroup group;
+        private final String instance;
+        private final Slot[] slots = new Slot[SLOTS];
+
+        private Window(MetersGroup group, String instance) {
+            this.group = group;
+            this.instance = instance;
+            for (int i = 0; i < SLOTS; i++) {
+                slots[i] = new Slot();
+            }
+        }
+
+        void record(int totalTime, int status) {
+            record(currentSecond(), totalTime, status);
+        }
+
+        void record(long second, int totalTime, int status) {
+            Slot slot = slots[(int) (second & (SLOTS - 1))];
+            if (slot.second != second) {
+                slot.reset(second);
+            }
+            slot.counts.incrementAndGet(bucket(Math.max(totalTime, 0)));
+            if (status >= 500) {
+                slot.counts.incrementAndGet(BUCKETS);
+            }
+        }
+
+        /**
+         * @return null when nothing was recorded during the longest window
+         */
+        Map<String, Object> snapshot(long currentSecond) {
+            long[] counts = new long[BUCKETS + 1];
+            Map<String, Object> windowStats = new LinkedHashMap<>();
+            int covered = 0;
+            for (int seconds : WINDOWS_SECONDS) {
+                // complete seconds only, current one is still being filled
+                for (; covered < seconds; covered++) {
+                    Slot slot = slots[(int) ((currentSecond - 1 - covered) & (SLOTS - 1))];
+                    if (slot.second == currentSecond - 1 - covered) {
+                        for (int i = 0; i <= BUCKETS; i++) {
+                            counts[i] += slot.counts.get(i);
+                        }
+                    }
+                }
+                windowStats.put(seconds + "s", stats(counts, seconds));
+            }
+            // counts cover the longest window by now
+            if (requests(counts) == 0) {
+                return null;
+            }
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("path", group.path());
+            if (group.stub() != null) {
+                snapshot.put("stub", group.stub());
+            }
+            if (instance != null) {
+                snapshot.put("instance", instance);
+            }
+            snapshot.putAll(windowStats);
+            return snapshot;
+        }
+
+        private static long requests(long[] counts) {
+            long requests = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                requests += counts[i];
+            }
+            return requests;
+        }
+
+        private static Map<String, Object> stats(long[] counts, int seconds) {
+            long requests = requests(counts);
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("rps", (double) requests / seconds);
+            stats.put("errorRate", requests == 0 ? 0.0 : (double) counts[BUCKETS] / requests);
+            for (double percentile : PERCENTILES) {
+                stats.put("p" + Math.round(percentile * 100), requests == 0 ? null : percentile(counts, requests, percentile));
+            }
+            return stats;
+        }
+
+        /**
+         * @return upper bound of the bucket holding the percentile, in ms
+         */
+        private static long percentile(long[] counts, long requests, double percentile) {
+            long rank = (long) Math.ceil(percentile * requests);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        static int bucket(int value) {
+            if (value < EXACT_BUCKETS) {
+                return value;
+            }
+            int magnitude = 31 - Integer.numberOfLeadingZeros(value);
+            if (magnitude > MAX_MAGNITUDE) {
+                return BUCKETS - 1;
+            }
+            int subBucket = (value >>> (magnitude - 2)) & (SUB_BUCKETS - 1);
+            return EXACT_BUCKETS + (magnitude - 3) * SUB_BUCKETS + subBucket;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < EXACT_BUCKETS) {
+                return bucket;
+            }
+            int magnitude = (bucket - EXACT_BUCKETS) / SUB_BUCKETS + 3;
+            int subBucket = (bucket - EXACT_BUCKETS) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + subBucket + 1) << (magnitude - 2)) - 1;
+        }
+    }
+
+    private static final class Slot {
+        // latency buckets followed by number of errors
+        private final AtomicIntegerArray counts = new AtomicIntegerArray(Window.BUCKETS + 1);
+        private volatile long second = -1;
+
+        private synchronized void reset(long newSecond) {
+            if (second == newSecond) {
+                return;
+            }
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+            second = newSecond;
+        }
+    }
+}
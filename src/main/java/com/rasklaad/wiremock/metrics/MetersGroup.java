@@ -0,0 +1,133 @@
+package com.rasklaad.wiremock.metrics;
+
+import java.util.function.Consumer;
+
+/**
+ * Meters sharing path (and stub) labels. There are only a few method/status combinations per group,
+ * so they are kept in a copy-on-write array and scanned linearly.
+ */
+final class MetersGroup {
+
+    interface Factory {
+        RequestMeters create(MetersGroup group, String method, int status);
+    }
+
+    interface Rebuilder {
+        RequestMeters rebuild(MetersGroup group, RequestMeters previous);
+    }
+
+    private static final RequestMeters[] EMPTY = new RequestMeters[0];
+
+    private final String path;
+    // null unless series are registered by stub mapping
+    private final String stub;
+    private volatile RequestMeters[] meters = EMPTY;
+    // written under this
+    private volatile boolean retired;
+
+    MetersGroup(String path) {
+        this(path, null);
+    }
+
+    MetersGroup(String path, String stub) {
+        this.path = path;
+        this.stub = stub;
+    }
+
+    String path() {
+        return path;
+    }
+
+    String stub() {
+        return stub;
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
+    RequestMeters find(String method, int status) {
+        for (RequestMeters candidate : meters) {
+            if (candidate.matches(method, status) && !candidate.isEvicted()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return null when group is retired and must not get new meters
+     */
+    synchronized RequestMeters add(String method, int status, Factory factory) {
+        if (retired) {
+            return null;
+        }
+        RequestMeters existing = find(method, status);
+        if (existing != null) {
+            return existing;
+        }
+        RequestMeters created = factory.create(this, method, status);
+        RequestMeters[] current = meters;
+        RequestMeters[] updated = new RequestMeters[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = created;
+        meters = updated;
+        return created;
+    }
+
+    RequestMeters get(String method, int status, Factory factory) {
+        RequestMeters found = find(method, status);
+        return found != null ? found : add(method, status, factory);
+    }
+
+    /**
+     * @return true when there are no meters left and group is retired
+     */
+    synchronized boolean evictIdle(long now, long idleNanos, Consumer<RequestMeters> onEvict) {
+        RequestMeters[] current = meters;
+        RequestMeters[] kept = new RequestMeters[current.length];
+        int keptCount = 0;
+        for (RequestMeters candidate : current) {
+            if (candidate.tryEvict(now, idleNanos)) {
+                onEvict.accept(candidate);
+            } else {
+                kept[keptCount++] = candidate;
+            }
+        }
+        if (keptCount != current.length) {
+            RequestMeters[] updated = new RequestMeters[keptCount];
+            System.arraycopy(kept, 0, updated, 0, keptCount);
+            meters = updated;
+        }
+        retired = keptCount == 0;
+        return retired;
+    }
+
+    /**
+     * Replaces every meters with ones rebuilt from them, e.g. after collection settings changed. Replaced meters
+     * aren't evicted, recorders still holding them finish recording into meters they share with replacements
+     */
+    synchronized void rebuild(Rebuilder rebuilder) {
+        if (retired) {
+            return;
+        }
+        RequestMeters[] current = meters;
+        RequestMeters[] updated = new RequestMeters[current.length];
+        for (int i = 0; i < current.length; i++) {
+            updated[i] = rebuilder.rebuild(this, current[i]);
+        }
+        meters = updated;
+    }
+
+    /**
+     * Evicts all meters regardless of activity, group doesn't accept new meters afterwards
+     */
+    synchronized void retire(Consumer<RequestMeters> onEvict) {
+        for (RequestMeters candidate : meters) {
+            candidate.evict();
+            onEvict.accept(candidate);
+        }
+        meters = EMPTY;
+        retired = true;
+    }
+}
@@ -1,9 +1,19 @@
 package com.rasklaad.wiremock.metrics;
 
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class MetricsConfiguration {
 
     private boolean useMappingUrlPattern;
     private boolean useRequestUrl;
+    private boolean useStubMapping;
     private boolean registerNotMatchedRequests;
     private boolean ignoreQueryParams;
     private boolean registerAnyUrlMappingAsRequestUrl;
@@ -11,8 +21,39 @@ public class MetricsConfiguration {
     private boolean processingTimeMetricEnabled = true;
     private boolean serveTimeMetricEnabled = true;
     private boolean responseSendTimeEnabled = true;
+    private boolean requestBodySizeMetricEnabled;
+    private boolean responseBodySizeMetricEnabled;
+    private boolean delayMetricsEnabled;
 
     private Double maximumMetricExpectedValue;
+    private HistogramMode totalTimeHistogram = HistogramMode.percentileHistogram();
+    private HistogramMode processingTimeHistogram = HistogramMode.percentileHistogram();
+    private HistogramMode serveTimeHistogram = HistogramMode.percentileHistogram();
+    private HistogramMode responseSendTimeHistogram = HistogramMode.percentileHistogram();
+    private Integer maximumPathSeries;
+    private boolean recordAsynchronously;
+    private int asyncBufferSize = 8192;
+    private int asyncConsumerThreads = 1;
+    private BackPressure asyncBackPressure = BackPressure.DROP;
+    private Duration scrapeCacheTtl = Duration.ZERO;
+    private Duration idleSeriesTtl;
+    private PrometheusMeterRegistry meterRegistry;
+    private String instance;
+    private JvmMetrics jvmMetrics;
+    private boolean detectPathIds;
+    private Double sampleRatio;
+    private Long sampleTargetEventsPerSecond;
+    private double[] highResolutionBuckets;
+    private boolean liveStats;
+    private Integer slowestStubs;
+    private boolean exemplars;
+    private String traceHeader;
+    private Integer slowestRequests;
+    private final List<String> pathTemplates = new ArrayList<>();
+    private final List<String> federatedPeers = new ArrayList<>();
+    private Duration federationTimeout = Duration.ofSeconds(2);
+    private Path persistenceFile;
+    private Duration checkpointPeriod;
 
     MetricsConfiguration() {
 
@@ -27,6 +68,15 @@ public class MetricsConfiguration {
         return this;
     }
 
+    /**
+     * Registers matched requests by stub mapping: {@code stub} tag is stub name, or id when stub has no name,
+     * {@code path} tag is stub url pattern. Series are dropped when stub is removed
+     */
+    public MetricsConfiguration useStubMapping() {
+        useStubMapping = true;
+        return this;
+    }
+
     public MetricsConfiguration registerNotMatchedRequests() {
         registerNotMatchedRequests = true;
         return this;
@@ -62,11 +112,270 @@ public class MetricsConfiguration {
         return this;
     }
 
+    /**
+     * Records {@code wiremock.request.bodySize} in bytes, taken from logged request body or Content-Length header
+     */
+    public MetricsConfiguration requestBodySizeMetricEnabled(boolean enabled) {
+        requestBodySizeMetricEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Records {@code wiremock.response.bodySize} in bytes, taken from logged response body or Content-Length header
+     */
+    public MetricsConfiguration responseBodySizeMetricEnabled(boolean enabled) {
+        responseBodySizeMetricEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Records {@code wiremock.request.configuredDelay}, delay wiremock chose for the response (fixed or sampled random delay
+     * plus chunked dribble duration), and {@code wiremock.request.delayOvershoot}, serve time exceeding it, with serve time
+     * histogram mode. Only responses with a delay are recorded
+     */
+    public MetricsConfiguration delayMetricsEnabled(boolean enabled) {
+        delayMetricsEnabled = enabled;
+        return this;
+    }
+
     public MetricsConfiguration maximumMetricExpectedValue(Double maximumMetricExpectedValue) {
         this.maximumMetricExpectedValue = maximumMetricExpectedValue;
         return this;
     }
 
+    /**
+     * Sets histogram mode for all timings
+     */
+    public MetricsConfiguration histogramMode(HistogramMode mode) {
+        return totalTimeHistogram(mode)
+            .processingTimeHistogram(mode)
+            .serveTimeHistogram(mode)
+            .responseSendTimeHistogram(mode);
+    }
+
+    public MetricsConfiguration totalTimeHistogram(HistogramMode mode) {
+        totalTimeHistogram = mode;
+        return this;
+    }
+
+    public MetricsConfiguration processingTimeHistogram(HistogramMode mode) {
+        processingTimeHistogram = mode;
+        return this;
+    }
+
+    public MetricsConfiguration serveTimeHistogram(HistogramMode mode) {
+        serveTimeHistogram = mode;
+        return this;
+    }
+
+    public MetricsConfiguration responseSendTimeHistogram(HistogramMode mode) {
+        responseSendTimeHistogram = mode;
+        return this;
+    }
+
+    public MetricsConfiguration maximumPathSeries(int maximumPathSeries) {
+        this.maximumPathSeries = maximumPathSeries;
+        return this;
+    }
+
+    public MetricsConfiguration recordAsynchronously() {
+        recordAsynchronously = true;
+        return this;
+    }
+
+    public MetricsConfiguration asyncBufferSize(int bufferSize) {
+        asyncBufferSize = bufferSize;
+        return this;
+    }
+
+    public MetricsConfiguration asyncConsumerThreads(int consumerThreads) {
+        asyncConsumerThreads = consumerThreads;
+        return this;
+    }
+
+    public MetricsConfiguration asyncBackPressure(BackPressure backPressure) {
+        asyncBackPressure = backPressure;
+        return this;
+    }
+
+    public MetricsConfiguration scrapeCacheTtl(Duration ttl) {
+        scrapeCacheTtl = ttl;
+        return this;
+    }
+
+    public MetricsConfiguration expireIdleSeriesAfter(Duration ttl) {
+        idleSeriesTtl = ttl;
+        return this;
+    }
+
+    /**
+     * Records and scrapes metrics with given registry instead of a registry added to {@code Metrics.globalRegistry}.
+     * Pass the same configuration to both extensions, so the endpoint scrapes this registry
+     */
+    public MetricsConfiguration meterRegistry(PrometheusMeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        return this;
+    }
+
+    /**
+     * Adds {@code instance} tag to request and extension metrics. When servers share a registry,
+     * either all or none of them must set instance, prometheus requires the same tag keys for a metric
+     */
+    public MetricsConfiguration instance(String instance) {
+        this.instance = instance;
+        return this;
+    }
+
+    /**
+     * Jvm and system metrics bound on first scrape, {@link JvmMetrics#ALL} by default
+     * or {@value JvmMetrics#PROPERTY} system property when set
+     */
+    public MetricsConfiguration jvmMetrics(JvmMetrics jvmMetrics) {
+        this.jvmMetrics = jvmMetrics;
+        return this;
+    }
+
+    /**
+     * Replaces numeric, uuid and hex (16+ characters) path segments of request urls with {@code {id}},
+     * e.g. {@code /orders/123?page=1} is registered as {@code /orders/{id}}. Query string is dropped
+     */
+    public MetricsConfiguration detectPathIds() {
+        detectPathIds = true;
+        return this;
+    }
+
+    /**
+     * Registers request urls matching a template under the template itself, e.g. {@code /users/{name}/orders}.
+     * Segments in curly braces match any single segment, literal segments take precedence. Query string is dropped
+     */
+    public MetricsConfiguration pathTemplates(String... templates) {
+        pathTemplates.addAll(Arrays.asList(templates));
+        return this;
+    }
+
+    /**
+     * Records only given fraction of requests into timing and size distributions, e.g. 0.1 records every 10th request.
+     * Exact number of requests is counted by {@code wiremock_requests_total}, sampled distributions get {@code sampled="true"} tag
+     */
+    public MetricsConfiguration sampleRatio(double ratio) {
+        sampleRatio = ratio;
+        return this;
+    }
+
+    /**
+     * Like {@link #sampleRatio(double)}, but the ratio is recalculated every second
+     * to record about given number of requests per second
+     */
+    public MetricsConfiguration adaptiveSampling(long targetEventsPerSecond) {
+        sampleTargetEventsPerSecond = targetEventsPerSecond;
+        return this;
+    }
+
+    /**
+     * Records timings into HdrHistogram instead of micrometer summaries. Exported as
+     * {@code wiremock_request_<timing>_hdr_ms} summary with 0.5, 0.9, 0.99 and 0.999 quantiles over the last minute or two
+     * and, when buckets (ms) are given, {@code wiremock_request_<timing>_hdr_ms_buckets} histogram.
+     * Timings come from wiremock in whole milliseconds: quantiles are exact below 256ms and within 1% above,
+     * buckets count exactly the values not above their bound. Every enabled timing of every path, method and status
+     * takes about 2KB for timings within 50ms and up to about 20KB for timings spread over a minute, on top of
+     * the micrometer meters, so keep paths bounded with {@link #maximumPathSeries(int)} or idle series eviction
+     */
+    public MetricsConfiguration highResolutionTimings(double... buckets) {
+        highResolutionBuckets = buckets.clone();
+        Arrays.sort(highResolutionBuckets);
+        return this;
+    }
+
+    /**
+     * Keeps request rate, error rate (5xx responses) and total time percentiles of every path over the last 1, 10 and 60 seconds,
+     * served by the endpoint extension as json on {@code /__admin/metrics/live}. Takes a fixed ~20KB per path, whatever the traffic
+     */
+    public MetricsConfiguration liveStats() {
+        liveStats = true;
+        return this;
+    }
+
+    /**
+     * Measures stub matching separately from the rest of processing: {@code wiremock_stub_match_seconds} histogram
+     * by {@code matched}, {@code wiremock_stub_respond_seconds} from matching until the response is sent,
+     * {@code wiremock_stub_match_position} position of the matched stub in matching order, and mean match time and
+     * position of given number of slowest matching stubs
+     */
+    public MetricsConfiguration stubMatchingMetrics(int slowestStubs) {
+        this.slowestStubs = slowestStubs;
+        return this;
+    }
+
+    /**
+     * Same as {@link #exemplars(String)} with serve event id as trace id
+     */
+    public MetricsConfiguration exemplars() {
+        return exemplars(null);
+    }
+
+    /**
+     * Attaches trace id of a recent request to histogram buckets and counters as OpenMetrics exemplar, so a latency
+     * spike leads to requests that caused it. Exemplars are served in OpenMetrics format only.
+     * A registry passed to {@link #meterRegistry(PrometheusMeterRegistry)} must be created with
+     * {@link PrometheusMetricsExtension#exemplarSampler()}
+     *
+     * @param traceHeader request header with trace id, e.g. {@code traceparent} (trace id is taken from w3c format)
+     *                    or {@code X-B3-TraceId}; requests without it use serve event id
+     */
+    public MetricsConfiguration exemplars(String traceHeader) {
+        exemplars = true;
+        this.traceHeader = traceHeader;
+        return this;
+    }
+
+    /**
+     * Keeps method, url, status and timings of given number of slowest requests of every path, served by
+     * {@code /__admin/metrics/slowest-requests}. Works without request journal and doesn't keep bodies or headers
+     */
+    public MetricsConfiguration slowestRequests(int perPath) {
+        slowestRequests = perPath;
+        return this;
+    }
+
+    /**
+     * Serves {@code /__admin/prometheus-metrics/federated}: metrics of this server merged series by series with metrics
+     * scraped from peers, so prometheus scrapes one endpoint for a fleet of servers. Counters, histogram buckets, counts
+     * and sums are added up, maximums and summary quantiles keep the highest value, other gauges are listed per server
+     * with an {@code instance} label. Peers are scraped in parallel, peers that don't
+     * answer within {@link #federationTimeout(Duration)} are left out and reported by {@code wiremock_federation_peer_up}.
+     * The merged scrape is cached for {@link #scrapeCacheTtl(Duration)}. Only used by {@link MetricsEndpointExtension}
+     *
+     * @param peerUrls metrics endpoints of other servers, e.g. {@code http://wiremock-2:8080/__admin/prometheus-metrics}
+     */
+    public MetricsConfiguration federate(String... peerUrls) {
+        federatedPeers.addAll(Arrays.asList(peerUrls));
+        return this;
+    }
+
+    public MetricsConfiguration federationTimeout(Duration timeout) {
+        federationTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * Same as {@link #persistMetrics(Path, Duration)} with checkpoints every 10 seconds
+     */
+    public MetricsConfiguration persistMetrics(Path file) {
+        return persistMetrics(file, Duration.ofSeconds(10));
+    }
+
+    /**
+     * Keeps counts, sums and histogram buckets of request series across restarts: they are checkpointed into given
+     * memory-mapped file and added to scrapes after the next start, so counters don't reset. Requests served after
+     * the last checkpoint are lost on crash, stop writes a final checkpoint. Snapshot written with different series
+     * settings (url mode, histograms, instance, sampling, collection settings) is not restored.
+     */
+    public MetricsConfiguration persistMetrics(Path file, Duration checkpointPeriod) {
+        persistenceFile = file;
+        this.checkpointPeriod = checkpointPeriod;
+        return this;
+    }
+
     static MetricsConfiguration defaultConfiguration() {
         return new MetricsConfiguration()
             .totalTimeMetricEnabled(true)
@@ -77,13 +386,96 @@ public class MetricsConfiguration {
     }
 
     void validate() {
-        if (useMappingUrlPattern && useRequestUrl) {
-            throw new IllegalStateException("You can't use both url path and url pattern");
+        int modes = (useMappingUrlPattern ? 1 : 0) + (useRequestUrl ? 1 : 0) + (useStubMapping ? 1 : 0);
+        if (modes > 1) {
+            throw new IllegalStateException("You can use only one of url path, url pattern or stub mapping");
+        }
+        if (modes == 0) {
+            throw new IllegalStateException("You must use either url path, url pattern or stub mapping");
+        }
+        validateHistogram(totalTimeHistogram, "total time");
+        validateHistogram(processingTimeHistogram, "processing time");
+        validateHistogram(serveTimeHistogram, "serve time");
+        validateHistogram(responseSendTimeHistogram, "response send time");
+        if (maximumPathSeries != null && maximumPathSeries < 1) {
+            throw new IllegalStateException("Maximum path series must be positive, got " + maximumPathSeries);
+        }
+        if (scrapeCacheTtl == null || scrapeCacheTtl.isNegative()) {
+            throw new IllegalStateException("Scrape cache ttl must not be negative, got " + scrapeCacheTtl);
+        }
+        if (idleSeriesTtl != null && (idleSeriesTtl.isNegative() || idleSeriesTtl.isZero())) {
+            throw new IllegalStateException("Idle series ttl must be positive, got " + idleSeriesTtl);
+        }
+        getJvmMetrics();
+        for (String template : pathTemplates) {
+            if (template == null || !template.startsWith("/")) {
+                throw new IllegalStateException("Path template must start with '/', got " + template);
+            }
+        }
+        for (String peer : federatedPeers) {
+            if (peer == null || !(peer.startsWith("http://") || peer.startsWith("https://"))) {
+                throw new IllegalStateException("Federated peer must be an http or https url, got " + peer);
+            }
+            try {
+                URI.create(peer);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("Federated peer is not a valid url: " + peer, e);
+            }
+        }
+        if (federationTimeout == null || federationTimeout.isNegative() || federationTimeout.isZero()) {
+            throw new IllegalStateException("Federation timeout must be positive, got " + federationTimeout);
+        }
+        if (persistenceFile != null && (checkpointPeriod == null || checkpointPeriod.toMillis() < 1)) {
+            throw new IllegalStateException("Checkpoint period must be at least 1ms, got " + checkpointPeriod);
+        }
+        if (sampleRatio != null && sampleTargetEventsPerSecond != null) {
+            throw new IllegalStateException("You can't use both fixed and adaptive sampling");
+        }
+        if (sampleRatio != null && !(sampleRatio > 0 && sampleRatio <= 1)) {
+            throw new IllegalStateException("Sample ratio must be greater than 0 and not greater than 1, got " + sampleRatio);
+        }
+        if (sampleTargetEventsPerSecond != null && sampleTargetEventsPerSecond < 1) {
+            throw new IllegalStateException("Sampling target must be positive, got " + sampleTargetEventsPerSecond);
+        }
+        if (highResolutionBuckets != null) {
+            for (double bucket : highResolutionBuckets) {
+                if (!(bucket > 0)) {
+                    throw new IllegalStateException("High resolution buckets must be positive, got " + Arrays.toString(highResolutionBuckets));
+                }
+            }
+        }
+        if (slowestRequests != null && slowestRequests < 1) {
+            throw new IllegalStateException("Number of slowest requests must be positive, got " + slowestRequests);
+        }
+        if (traceHeader != null && traceHeader.isEmpty()) {
+            throw new IllegalStateException("Trace header must not be empty");
+        }
+        if (slowestStubs != null && slowestStubs < 0) {
+            throw new IllegalStateException("Number of slowest stubs must not be negative, got " + slowestStubs);
+        }
+        if (instance != null && instance.isEmpty()) {
+            throw new IllegalStateException("Instance must not be empty");
+        }
+        if (recordAsynchronously) {
+            if (asyncBufferSize < 2 || asyncBufferSize > 1 << 30) {
+                throw new IllegalStateException("Async buffer size must be between 2 and 2^30, got " + asyncBufferSize);
+            }
+            if (asyncConsumerThreads < 1) {
+                throw new IllegalStateException("Async consumer threads must be positive, got " + asyncConsumerThreads);
+            }
+            if (asyncBackPressure == null) {
+                throw new IllegalStateException("Async back pressure must be set");
+            }
         }
-        if (!useMappingUrlPattern && !useRequestUrl) {
-            throw new IllegalStateException("You must use either url path or url pattern");
+    }
+
+    private static void validateHistogram(HistogramMode mode, String timing) {
+        if (mode == null) {
+            throw new IllegalStateException("Histogram mode must be set for " + timing);
         }
+        mode.validate(timing);
     }
+
     boolean shouldUseMappingUrlPattern() {
         return useMappingUrlPattern;
     }
@@ -92,6 +484,10 @@ public class MetricsConfiguration {
         return useRequestUrl;
     }
 
+    boolean shouldUseStubMapping() {
+        return useStubMapping;
+    }
+
     boolean shouldRegisterNotMatchedRequests() {
         return registerNotMatchedRequests;
     }
@@ -120,7 +516,161 @@ public class MetricsConfiguration {
         return responseSendTimeEnabled;
     }
 
+    boolean isRequestBodySizeMetricEnabled() {
+        return requestBodySizeMetricEnabled;
+    }
+
+    boolean isResponseBodySizeMetricEnabled() {
+        return responseBodySizeMetricEnabled;
+    }
+
+    boolean isDelayMetricsEnabled() {
+        return delayMetricsEnabled;
+    }
+
     Double getMaximumMetricExpectedValue() {
         return maximumMetricExpectedValue;
     }
+
+    HistogramMode getTotalTimeHistogram() {
+        return totalTimeHistogram;
+    }
+
+    HistogramMode getProcessingTimeHistogram() {
+        return processingTimeHistogram;
+    }
+
+    HistogramMode getServeTimeHistogram() {
+        return serveTimeHistogram;
+    }
+
+    HistogramMode getResponseSendTimeHistogram() {
+        return responseSendTimeHistogram;
+    }
+
+    Integer getMaximumPathSeries() {
+        return maximumPathSeries;
+    }
+
+    boolean shouldRecordAsynchronously() {
+        return recordAsynchronously;
+    }
+
+    int getAsyncBufferSize() {
+        return asyncBufferSize;
+    }
+
+    int getAsyncConsumerThreads() {
+        return asyncConsumerThreads;
+    }
+
+    BackPressure getAsyncBackPressure() {
+        return asyncBackPressure;
+    }
+
+    Duration getScrapeCacheTtl() {
+        return scrapeCacheTtl;
+    }
+
+    Duration getIdleSeriesTtl() {
+        return idleSeriesTtl;
+    }
+
+    PrometheusMeterRegistry getMeterRegistry() {
+        return meterRegistry;
+    }
+
+    String getInstance() {
+        return instance;
+    }
+
+    JvmMetrics getJvmMetrics() {
+        return jvmMetrics != null ? jvmMetrics : JvmMetrics.fromSystemProperty();
+    }
+
+    boolean shouldDetectPathIds() {
+        return detectPathIds;
+    }
+
+    List<String> getPathTemplates() {
+        return pathTemplates;
+    }
+
+    List<String> getFederatedPeers() {
+        return federatedPeers;
+    }
+
+    Duration getFederationTimeout() {
+        return federationTimeout;
+    }
+
+    /**
+     * @return null when metrics are not persisted
+     */
+    Path getPersistenceFile() {
+        return persistenceFile;
+    }
+
+    Duration getCheckpointPeriod() {
+        return checkpointPeriod;
+    }
+
+    /**
+     * Settings that decide names, tags and buckets of request series
+     */
+    String seriesFingerprint() {
+        return String.join("|",
+            useMappingUrlPattern ? "urlPattern" : useStubMapping ? "stubMapping" : "requestUrl",
+            String.valueOf(maximumMetricExpectedValue),
+            totalTimeHistogram.toString(),
+            processingTimeHistogram.toString(),
+            serveTimeHistogram.toString(),
+            responseSendTimeHistogram.toString(),
+            String.valueOf(instance),
+            String.valueOf(detectPathIds),
+            pathTemplates.toString(),
+            String.valueOf(sampleRatio != null || sampleTargetEventsPerSecond != null),
+            Arrays.toString(highResolutionBuckets));
+    }
+
+    Double getSampleRatio() {
+        return sampleRatio;
+    }
+
+    Long getSampleTargetEventsPerSecond() {
+        return sampleTargetEventsPerSecond;
+    }
+
+    double[] getHighResolutionBuckets() {
+        return highResolutionBuckets;
+    }
+
+    /**
+     * @return null when stub matching metrics are disabled
+     */
+    Integer getSlowestStubs() {
+        return slowestStubs;
+    }
+
+    boolean areExemplarsEnabled() {
+        return exemplars;
+    }
+
+    /**
+     * @return null when serve event id is used as trace id
+     */
+    String getTraceHeader() {
+        return traceHeader;
+    }
+
+    /**
+     * @return null when slowest requests are not kept
+     */
+    Integer getSlowestRequests() {
+        return slowestRequests;
+    }
+
+    boolean isLiveStatsEnabled() {
+        return liveStats;
+    }
 }
@@ -2,27 +2,105 @@ package com.rasklaad.wiremock.metrics;
 
 import com.github.tomakehurst.wiremock.admin.AdminTask;
 import com.github.tomakehurst.wiremock.admin.Router;
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.common.Errors;
+import com.github.tomakehurst.wiremock.common.Json;
+import com.github.tomakehurst.wiremock.common.JsonException;
 import com.github.tomakehurst.wiremock.common.url.PathParams;
 import com.github.tomakehurst.wiremock.core.Admin;
 import com.github.tomakehurst.wiremock.extension.AdminApiExtension;
-import com.github.tomakehurst.wiremock.http.Request;
+import com.github.tomakehurst.wiremock.extension.StubLifecycleListener;
 import com.github.tomakehurst.wiremock.http.RequestMethod;
 import com.github.tomakehurst.wiremock.http.ResponseDefinition;
 import com.github.tomakehurst.wiremock.stubbing.ServeEvent;
+import com.github.tomakehurst.wiremock.stubbing.StubMapping;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
 import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
-public class MetricsEndpointExtension implements AdminApiExtension {
+public class MetricsEndpointExtension implements AdminApiExtension, StubLifecycleListener {
     public static final String EXTENSION_NAME = "metrics-endpoint-extension";
+    private final MetricsConfiguration configuration;
+    private final ServerMetricsBinder serverMetricsBinder;
+
+    public MetricsEndpointExtension() {
+        this(MetricsConfiguration.defaultConfiguration());
+    }
+
+    public MetricsEndpointExtension(MetricsConfiguration configuration) {
+        configuration.validate();
+        this.configuration = configuration;
+        serverMetricsBinder = new ServerMetricsBinder(
+            configuration.getInstance() == null ? Tags.empty() : Tags.of("instance", configuration.getInstance()));
+    }
 
     @Override
     public void contributeAdminApiRoutes(Router router) {
-        router.add(RequestMethod.GET, "/prometheus-metrics", new PrometheusEndpointAdminTask());
+        PrometheusMeterRegistry registry = configuration.getMeterRegistry() != null
+            ? configuration.getMeterRegistry()
+            : findGlobalRegistry();
+        long cacheTtlNanos = configuration.getScrapeCacheTtl().toNanos();
+        router.add(RequestMethod.GET, "/prometheus-metrics", new PrometheusEndpointAdminTask(registry, cacheTtlNanos, serverMetricsBinder));
+        if (!configuration.getFederatedPeers().isEmpty()) {
+            router.add(RequestMethod.GET, "/prometheus-metrics/federated", new FederatedEndpointAdminTask(registry, cacheTtlNanos,
+                serverMetricsBinder, new FederatedScrape(configuration.getFederatedPeers(), configuration.getFederationTimeout())));
+        }
+        router.add(RequestMethod.GET, "/metrics/live", new LiveStatsAdminTask(registry));
+        router.add(RequestMethod.GET, "/metrics/slowest-requests", new SlowestRequestsAdminTask(registry));
+        router.add(RequestMethod.GET, "/prometheus-metrics/config", new GetSettingsAdminTask(registry));
+        router.add(RequestMethod.PUT, "/prometheus-metrics/config", new UpdateSettingsAdminTask(registry));
+    }
+
+    private static PrometheusMeterRegistry findGlobalRegistry() {
+        List<MeterRegistry> registries = Metrics.globalRegistry.getRegistries()
+            .stream()
+            .filter(registry -> registry instanceof PrometheusMeterRegistry)
+            .collect(Collectors.toList());
+        if (registries.size() != 1) {
+            throw new IllegalStateException("Expected exactly one PrometheusMeterRegistry, found " + registries.size()
+                + ". Pass the same registry to both extensions with MetricsConfiguration.meterRegistry()");
+        }
+        return (PrometheusMeterRegistry) registries.get(0);
+    }
+
+    @Override
+    public void afterStubCreated(StubMapping stub) {
+        serverMetricsBinder.stubsChanged();
+    }
+
+    @Override
+    public void afterStubEdited(StubMapping oldStub, StubMapping newStub) {
+        serverMetricsBinder.stubsChanged();
+    }
+
+    @Override
+    public void afterStubRemoved(StubMapping stub) {
+        serverMetricsBinder.stubsChanged();
+    }
+
+    @Override
+    public void afterStubsReset() {
+        serverMetricsBinder.stubsChanged();
     }
 
     @Override
@@ -30,24 +108,299 @@ public class MetricsEndpointExtension implements AdminApiExtension {
         return EXTENSION_NAME;
     }
 
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
     private final static class PrometheusEndpointAdminTask implements AdminTask {
+        private final PrometheusMeterRegistry prometheusMeterRegistry;
+        private final ServerMetricsBinder serverMetricsBinder;
+        // variant is a combination of content type and encoding, see variant()
+        private final ScrapeCache cache;
+        private volatile int lastScrapeSize = WRITE_BUFFER_SIZE;
+
+        private PrometheusEndpointAdminTask(PrometheusMeterRegistry prometheusMeterRegistry, long cacheTtlNanos,
+                                            ServerMetricsBinder serverMetricsBinder) {
+            this.prometheusMeterRegistry = prometheusMeterRegistry;
+            this.serverMetricsBinder = serverMetricsBinder;
+            cache = new ScrapeCache(cacheTtlNanos, 4);
+        }
+
+        @Override
+        public ResponseDefinition execute(Admin admin, ServeEvent event, PathParams pathParams) {
+            LoggedRequest request = event.getRequest();
+            String contentType = TextFormat.chooseContentType(request.getHeader("Accept"));
+            boolean gzip = acceptsGzip(request.getHeader("Accept-Encoding"));
+            serverMetricsBinder.bindTo(prometheusMeterRegistry, admin);
 
+            ResponseDefinitionBuilder response = ResponseDefinitionBuilder.responseDefinition()
+                .withStatus(HttpURLConnection.HTTP_OK)
+                .withHeader("Content-Type", contentType)
+                .withHeader("Vary", "Accept, Accept-Encoding")
+                .withBody(scrape(contentType, gzip));
+            if (gzip) {
+                response.withHeader("Content-Encoding", "gzip");
+            }
+            return response.build();
+        }
+
+        private byte[] scrape(String contentType, boolean gzip) {
+            JvmMetricsBinder.bindTo(prometheusMeterRegistry);
+            return cache.get(variant(contentType, gzip), () -> render(contentType, gzip));
+        }
+
+        private byte[] render(String contentType, boolean gzip) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(lastScrapeSize);
+            try (OutputStream output = gzip ? new GZIPOutputStream(body, WRITE_BUFFER_SIZE) : body;
+                 Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
+                writeScrape(prometheusMeterRegistry, writer, contentType);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            lastScrapeSize = body.size();
+            return body.toByteArray();
+        }
+
+        private static int variant(String contentType, boolean gzip) {
+            int format = TextFormat.CONTENT_TYPE_OPENMETRICS_100.equals(contentType) ? 1 : 0;
+            return format << 1 | (gzip ? 1 : 0);
+        }
+    }
+
+    /**
+     * Serves scrape of this server merged with scrapes of peers, always in text format
+     */
+    private static final class FederatedEndpointAdminTask implements AdminTask {
         private final PrometheusMeterRegistry prometheusMeterRegistry;
+        private final ServerMetricsBinder serverMetricsBinder;
+        private final FederatedScrape federatedScrape;
+        // variant is encoding, gzip or not
+        private final ScrapeCache cache;
 
-        private PrometheusEndpointAdminTask() {
-            List<MeterRegistry> registries = Metrics.globalRegistry.getRegistries()
-                .stream()
-                .filter(registry -> registry instanceof PrometheusMeterRegistry)
-                .collect(Collectors.toList());
-            if (registries.size() != 1) {
-                throw new IllegalStateException("Expected exactly one PrometheusMeterRegistry, found " + registries.size());
+        private FederatedEndpointAdminTask(PrometheusMeterRegistry prometheusMeterRegistry, long cacheTtlNanos,
+                                           ServerMetricsBinder serverMetricsBinder, FederatedScrape federatedScrape) {
+            this.prometheusMeterRegistry = prometheusMeterRegistry;
+            this.serverMetricsBinder = serverMetricsBinder;
+            this.federatedScrape = federatedScrape;
+            cache = new ScrapeCache(cacheTtlNanos, 2);
+        }
+
+        @Override
+        public ResponseDefinition execute(Admin admin, ServeEvent event, PathParams pathParams) {
+            boolean gzip = acceptsGzip(event.getRequest().getHeader("Accept-Encoding"));
+            serverMetricsBinder.bindTo(prometheusMeterRegistry, admin);
+            JvmMetricsBinder.bindTo(prometheusMeterRegistry);
+
+            ResponseDefinitionBuilder response = ResponseDefinitionBuilder.responseDefinition()
+                .withStatus(HttpURLConnection.HTTP_OK)
+                .withHeader("Content-Type", TextFormat.CONTENT_TYPE_004)
+                .withHeader("Vary", "Accept-Encoding")
+                .withBody(cache.get(gzip ? 1 : 0, () -> render(gzip)));
+            if (gzip) {
+                response.withHeader("Content-Encoding", "gzip");
             }
-            prometheusMeterRegistry = (PrometheusMeterRegistry) registries.get(0);
+            return response.build();
+        }
+
+        private byte[] render(boolean gzip) {
+            StringWriter localScrape = new StringWriter(WRITE_BUFFER_SIZE);
+            try {
+                writeScrape(prometheusMeterRegistry, localScrape, TextFormat.CONTENT_TYPE_004);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            String local = localScrape.toString();
+            ByteArrayOutputStream body = new ByteArrayOutputStream(local.length() + WRITE_BUFFER_SIZE);
+            try (OutputStream output = gzip ? new GZIPOutputStream(body, WRITE_BUFFER_SIZE) : body;
+                 Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
+                federatedScrape.scrape(local, writer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return body.toByteArray();
+        }
+    }
+
+    /**
+     * Writes samples of the registry with values restored from a previous run added, in any format
+     */
+    private static void writeScrape(PrometheusMeterRegistry registry, Writer writer, String contentType) throws IOException {
+        MetricsPersistence persistence = MetricsPersistence.find(registry);
+        if (persistence == null || !persistence.hasBaseline()) {
+            registry.scrape(writer, contentType);
+            return;
+        }
+        TextFormat.writeFormat(contentType, writer, persistence.withBaseline(registry.getPrometheusRegistry().metricFamilySamples()));
+    }
+
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                if (parts[i].trim().matches("q=0(\\.0*)?")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static final class LiveStatsAdminTask implements AdminTask {
+        private final PrometheusMeterRegistry registry;
+
+        private LiveStatsAdminTask(PrometheusMeterRegistry registry) {
+            this.registry = registry;
         }
 
         @Override
         public ResponseDefinition execute(Admin admin, ServeEvent event, PathParams pathParams) {
-            return new ResponseDefinition(HttpURLConnection.HTTP_OK, prometheusMeterRegistry.scrape());
+            // looked up per request, recording extension may be created after admin routes
+            LiveStats liveStats = LiveStats.find(registry);
+            if (liveStats == null) {
+                return ResponseDefinitionBuilder.responseDefinition()
+                    .withStatus(HttpURLConnection.HTTP_NOT_FOUND)
+                    .withBody("Live stats are not enabled, see MetricsConfiguration.liveStats()")
+                    .build();
+            }
+            return ResponseDefinition.okForJson(Collections.singletonMap("series", liveStats.snapshot()));
+        }
+    }
+
+    private static final class SlowestRequestsAdminTask implements AdminTask {
+        private final PrometheusMeterRegistry registry;
+
+        private SlowestRequestsAdminTask(PrometheusMeterRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        public ResponseDefinition execute(Admin admin, ServeEvent event, PathParams pathParams) {
+            SlowestRequests slowestRequests = SlowestRequests.find(registry);
+            if (slowestRequests == null) {
+                return ResponseDefinitionBuilder.responseDefinition()
+                    .withStatus(HttpURLConnection.HTTP_NOT_FOUND)
+                    .withBody("Slowest requests are not enabled, see MetricsConfiguration.slowestRequests()")
+                    .build();
+            }
+            return ResponseDefinition.okForJson(Collections.singletonMap("series", slowestRequests.snapshot()));
+        }
+    }
+
+    private static ResponseDefinition settingsNotFound() {
+        return ResponseDefinitionBuilder.responseDefinition()
+            .withStatus(HttpURLConnection.HTTP_NOT_FOUND)
+            .withBody("No server records metrics into this registry")
+            .build();
+    }
+
+    private static final class GetSettingsAdminTask implements AdminTask {
+        private final PrometheusMeterRegistry registry;
+
+        private GetSettingsAdminTask(PrometheusMeterRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        public ResponseDefinition execute(Admin admin, ServeEvent event, PathParams pathParams) {
+            List<RuntimeSettings> settings = RuntimeSettings.find(registry);
+            if (settings.isEmpty()) {
+                return settingsNotFound();
+            }
+            return ResponseDefinition.okForJson(settings.get(0).current().toMap());
+        }
+    }
+
+    /**
+     * Applies settings from request body to every server recording into the registry, settings missing from the body
+     * keep their values
+     */
+    private static final class UpdateSettingsAdminTask implements AdminTask {
+        private final PrometheusMeterRegistry registry;
+
+        private UpdateSettingsAdminTask(PrometheusMeterRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public ResponseDefinition execute(Admin admin, ServeEvent event, PathParams pathParams) {
+            List<RuntimeSettings> settings = RuntimeSettings.find(registry);
+            if (settings.isEmpty()) {
+                return settingsNotFound();
+            }
+            Map<String, Object> changes;
+            try {
+                String body = event.getRequest().getBodyAsString();
+                changes = body == null || body.trim().isEmpty() ? null : Json.read(body, Map.class);
+                if (changes == null) {
+                    return ResponseDefinition.badRequest(Errors.single(10, "Request body must be a json object of settings"));
+                }
+                // validate before anything is applied
+                settings.get(0).current().with(changes);
+            } catch (JsonException e) {
+                return ResponseDefinition.badRequest(e.getErrors());
+            } catch (IllegalArgumentException e) {
+                return ResponseDefinition.badRequest(Errors.single(10, e.getMessage()));
+            }
+            CollectionSettings updated = null;
+            for (RuntimeSettings serverSettings : settings) {
+                CollectionSettings current = serverSettings.update(changes);
+                if (updated == null) {
+                    updated = current;
+                }
+            }
+            return ResponseDefinition.okForJson(updated.toMap());
+        }
+    }
+
+    /**
+     * Rendered scrapes kept for cache ttl, one per variant of the response. Scrapes are published to other admin
+     * threads through an atomic array, body of a cached scrape is never modified
+     */
+    private static final class ScrapeCache {
+        private final long ttlNanos;
+        private final AtomicReferenceArray<CachedScrape> scrapes;
+
+        private ScrapeCache(long ttlNanos, int variants) {
+            this.ttlNanos = ttlNanos;
+            scrapes = new AtomicReferenceArray<>(variants);
+        }
+
+        private byte[] get(int variant, Supplier<byte[]> render) {
+            if (ttlNanos == 0) {
+                return render.get();
+            }
+            CachedScrape cached = scrapes.get(variant);
+            if (cached != null && cached.isFresh(ttlNanos)) {
+                return cached.body;
+            }
+            // concurrent scrapes wait for a single render instead of rendering the same body again
+            synchronized (this) {
+                cached = scrapes.get(variant);
+                if (cached == null || !cached.isFresh(ttlNanos)) {
+                    cached = new CachedScrape(render.get());
+                    scrapes.set(variant, cached);
+                }
+                return cached.body;
+            }
+        }
+    }
+
+    private static final class CachedScrape {
+        private final byte[] body;
+        private final long renderedAt = System.nanoTime();
+
+        private CachedScrape(byte[] body) {
+            this.body = body;
+        }
+
+        private boolean isFresh(long ttlNanos) {
+            return System.nanoTime() - renderedAt < ttlNanos;
         }
     }
 }
@@ -0,0 +1,550 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import static com.github.tomakehurst.wiremock.common.LocalNotifier.notifier;
+
+/**
+ * Keeps request series counts, sums and histogram buckets across restarts. Values are checkpointed periodically into
+ * a memory-mapped file and restored on start as a baseline added to scrapes, so counters continue from the last
+ * checkpoint instead of resetting. Meters themselves can't be set to a value, so the baseline is added to samples
+ * collected from the registry before they are written in whatever format the scrape asked for.
+ * <p>
+ * The file holds two slots and checkpoints alternate between them. Each slot has a sequence number and checksum,
+ * so a checkpoint torn by a crash is ignored and the other slot is restored. Samples are encoded straight into the
+ * mapped slot, writes go to the page cache, they survive the process crashing and are forced to disk only on stop.
+ * A snapshot is restored only when it was written with the same series fingerprint, other configurations name, tag
+ * or bucket series differently.
+ * <p>
+ * Checkpoints run on background tasks and on process exit from a single shutdown hook, both reference persistences
+ * weakly, so a server stopped without stopping extensions doesn't stay reachable.
+ */
+final class MetricsPersistence {
+    // values reference registries weakly too, otherwise keys are never collected
+    private static final Map<PrometheusMeterRegistry, WeakReference<MetricsPersistence>> PERSISTENCES =
+        Collections.synchronizedMap(new WeakHashMap<>());
+    // checkpointed by the shutdown hook, guarded by itself
+    private static final Set<MetricsPersistence> STARTED = Collections.newSetFromMap(new WeakHashMap<>());
+    private static boolean shutdownHookAdded;
+    private static final String[] PERSISTED_PREFIXES = {"wiremock_request", "wiremock_response"};
+    private static final int MAGIC = 0x574d4d53;
+    private static final int VERSION = 2;
+    // magic, version, sequence, payload length and checksum
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+    private static final int MIN_SLOT_CAPACITY = 64 * 1024;
+
+    private final PrometheusMeterRegistry registry;
+    private final Path file;
+    private final long checkpointPeriodMillis;
+    private final Supplier<String> fingerprint;
+    private volatile Baseline baseline = Baseline.EMPTY;
+    private volatile Future<?> checkpoints;
+    // guarded by this
+    private FileChannel channel;
+    private MappedByteBuffer mapping;
+    private int slotCapacity;
+    private int latestSlot = -1;
+    private int latestLength;
+    private long sequence;
+
+    /**
+     * @param fingerprint describes names, tags and buckets of request series, snapshots with another one aren't restored.
+     * Must not reference the extension, persistence outlives it until released
+     */
+    MetricsPersistence(PrometheusMeterRegistry registry, Path file, Duration checkpointPeriod, Supplier<String> fingerprint) {
+        this.registry = registry;
+        this.file = file;
+        this.checkpointPeriodMillis = checkpointPeriod.toMillis();
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @return null when metrics of the registry are not persisted
+     */
+    static MetricsPersistence find(PrometheusMeterRegistry registry) {
+        WeakReference<MetricsPersistence> persistence = PERSISTENCES.get(registry);
+        return persistence == null ? null : persistence.get();
+    }
+
+    /**
+     * Restores the latest valid snapshot and starts checkpoints
+     */
+    synchronized void start() {
+        synchronized (PERSISTENCES) {
+            if (find(registry) != null) {
+                throw new IllegalStateException("Metrics of a registry can be persisted by one server only");
+            }
+            PERSISTENCES.put(registry, new WeakReference<>(this));
+        }
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = channel.size();
+            if (size >= 2 * HEADER_SIZE && size <= 2L * Integer.MAX_VALUE) {
+                slotCapacity = (int) (size / 2);
+                mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2L * slotCapacity);
+                restore();
+            }
+        } catch (IOException e) {
+            PERSISTENCES.remove(registry);
+            throw new UncheckedIOException(e);
+        }
+        checkpoints = BackgroundTasks.scheduleWithFixedDelay(this, MetricsPersistence::checkpointSafely, checkpointPeriodMillis);
+        // wiremock stops extensions only when shut down through admin api, not when the process is terminated
+        synchronized (STARTED) {
+            if (!shutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread(MetricsPersistence::checkpointStarted, "wiremock-metrics-persistence-shutdown"));
+                shutdownHookAdded = true;
+            }
+            STARTED.add(this);
+        }
+    }
+
+    private static void checkpointStarted() {
+        List<MetricsPersistence> started;
+        synchronized (STARTED) {
+            started = new ArrayList<>(STARTED);
+        }
+        for (MetricsPersistence persistence : started) {
+            persistence.checkpointSafely();
+        }
+    }
+
+    /**
+     * Writes the last checkpoint and forces it to disk. Called when wiremock is shut down through admin api or once
+     * the extension is collected, a terminated process writes the last checkpoint from the shutdown hook
+     */
+    synchronized void stop() {
+        Future<?> scheduled = checkpoints;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        synchronized (STARTED) {
+            STARTED.remove(this);
+        }
+        if (channel == null) {
+            return;
+        }
+        try {
+            checkpoint();
+            if (mapping != null) {
+                mapping.force();
+            }
+            channel.close();
+            channel = null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            PERSISTENCES.remove(registry);
+        }
+    }
+
+    boolean hasBaseline() {
+        return !baseline.isEmpty();
+    }
+
+    /**
+     * Forgets restored values of matching families, e.g. when their live series are dropped because collection
+     * settings changed
+     */
+    synchronized void dropBaseline(Predicate<String> familyName) {
+        baseline = baseline.without(familyName);
+    }
+
+    /**
+     * @param families collected from the registry
+     * @return families with restored values added to their samples, exemplars and other formats' details kept
+     */
+    Enumeration<MetricFamilySamples> withBaseline(Enumeration<MetricFamilySamples> families) {
+        Baseline restored = baseline;
+        return restored.isEmpty() ? families : Collections.enumeration(restored.addTo(families));
+    }
+
+    private void checkpointSafely() {
+        try {
+            checkpoint();
+        } catch (RuntimeException | IOException e) {
+            notifier().error("Failed to checkpoint request metrics into " + file, e);
+        }
+    }
+
+    synchronized void checkpoint() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        Enumeration<MetricFamilySamples> live = registry.getPrometheusRegistry().filteredMetricFamilySamples(MetricsPersistence::isPersisted);
+        Baseline restored = baseline;
+        write(fingerprint.get(), restored.isEmpty() ? Collections.list(live) : restored.addTo(live));
+    }
+
+    private static boolean isPersisted(String sampleName) {
+        for (String prefix : PERSISTED_PREFIXES) {
+            if (sampleName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPersisted(MetricFamilySamples family) {
+        return family.type == Collector.Type.COUNTER || family.type == Collector.Type.HISTOGRAM || family.type == Collector.Type.SUMMARY;
+    }
+
+    /**
+     * Maximums and quantiles can't be continued, creation time describes the new process
+     */
+    private static boolean isPersisted(MetricFamilySamples family, Sample sample) {
+        return !(family.type == Collector.Type.SUMMARY && sample.name.equals(family.name)) && !sample.name.endsWith("_created");
+    }
+
+    /**
+     * Encodes into the slot that doesn't hold the latest snapshot, so the latest one stays intact until this one is
+     * complete. A file is grown before a snapshot may not fit: the grown file keeps the first slot where it was and
+     * moves the second one to the new middle. A snapshot that still overflows its slot is written again after growing,
+     * the slot it started in is lost then
+     */
+    private void write(String fingerprint, List<MetricFamilySamples> families) throws IOException {
+        int slot = latestSlot == 1 ? 0 : 1;
+        if (mapping == null || latestLength > (slotCapacity - HEADER_SIZE) / 2) {
+            grow();
+            slot = 1;
+        }
+        ByteBuffer target;
+        while (true) {
+            target = mapping.duplicate();
+            target.limit((slot + 1) * slotCapacity).position(slot * slotCapacity + HEADER_SIZE);
+            try {
+                encode(target, fingerprint, families);
+                break;
+            } catch (BufferOverflowException e) {
+                grow();
+                slot = 1;
+            }
+        }
+        int start = slot * slotCapacity;
+        int length = target.position() - start - HEADER_SIZE;
+        CRC32 checksum = new CRC32();
+        checksum.update(target.flip().position(start + HEADER_SIZE));
+        target.limit(start + HEADER_SIZE).position(start);
+        target.putInt(MAGIC)
+            .putInt(VERSION)
+            .putLong(++sequence)
+            .putInt(length)
+            .putInt((int) checksum.getValue());
+        latestSlot = slot;
+        latestLength = length;
+    }
+
+    private void grow() throws IOException {
+        slotCapacity = Math.max(MIN_SLOT_CAPACITY, 2 * slotCapacity);
+        mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2L * slotCapacity);
+    }
+
+    private void restore() {
+        long[] sequences = {readSequence(0), readSequence(1)};
+        int slot = sequences[0] >= sequences[1] ? 0 : 1;
+        if (sequences[slot] < 0) {
+            return;
+        }
+        sequence = sequences[slot];
+        latestSlot = slot;
+        int start = slot * slotCapacity;
+        ByteBuffer payload = mapping.duplicate();
+        latestLength = payload.getInt(start + 4 + 4 + 8);
+        payload.limit(start + HEADER_SIZE + latestLength).position(start + HEADER_SIZE);
+        try {
+            String expected = fingerprint.get();
+            String written = readString(payload);
+            if (!expected.equals(written)) {
+                notifier().info("Request metrics in " + file + " were written with another configuration and are not restored");
+                return;
+            }
+            baseline = new Baseline(decodeFamilies(payload));
+        } catch (RuntimeException e) {
+            notifier().error("Failed to restore request metrics from " + file, e);
+        }
+    }
+
+    /**
+     * @return sequence of a complete snapshot in the slot, -1 when there is none
+     */
+    private long readSequence(int slot) {
+        ByteBuffer header = mapping.duplicate();
+        header.position(slot * slotCapacity);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            return -1;
+        }
+        long slotSequence = header.getLong();
+        int length = header.getInt();
+        int expectedChecksum = header.getInt();
+        if (length < 0 || length > slotCapacity - HEADER_SIZE) {
+            return -1;
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(header.limit(header.position() + length));
+        return (int) checksum.getValue() == expectedChecksum ? slotSequence : -1;
+    }
+
+    /**
+     * Fingerprint, then family records followed by their samples. Consecutive samples of a family mostly repeat
+     * name, label names and values of the previous sample (same series, different {@code le}), so a repeated string
+     * is stored as a single zero byte
+     */
+    private static void encode(ByteBuffer target, String fingerprint, List<MetricFamilySamples> families) {
+        writeString(target, fingerprint);
+        for (MetricFamilySamples family : families) {
+            if (!isPersisted(family)) {
+                continue;
+            }
+            writeString(target, family.name);
+            writeString(target, family.type.name());
+            writeString(target, family.help == null ? "" : family.help);
+            int countPosition = target.position();
+            target.putInt(0);
+            int count = 0;
+            Sample previous = null;
+            for (Sample sample : family.samples) {
+                if (!isPersisted(family, sample)) {
+                    continue;
+                }
+                writeRepeatable(target, sample.name, previous == null ? null : previous.name);
+                writeVarint(target, sample.labelNames.size());
+                for (int i = 0; i < sample.labelNames.size(); i++) {
+                    boolean sameLabel = previous != null && i < previous.labelNames.size();
+                    writeRepeatable(target, sample.labelNames.get(i), sameLabel ? previous.labelNames.get(i) : null);
+                    writeRepeatable(target, sample.labelValues.get(i), sameLabel ? previous.labelValues.get(i) : null);
+                }
+                target.putDouble(sample.value);
+                previous = sample;
+                count++;
+            }
+            target.putInt(countPosition, count);
+        }
+    }
+
+    /**
+     * @param payload positioned after fingerprint
+     */
+    private static List<MetricFamilySamples> decodeFamilies(ByteBuffer payload) {
+        List<MetricFamilySamples> families = new ArrayList<>();
+        while (payload.hasRemaining()) {
+            String familyName = readString(payload);
+            Collector.Type type = Collector.Type.valueOf(readString(payload));
+            String help = readString(payload);
+            int count = payload.getInt();
+            List<Sample> samples = new ArrayList<>(count);
+            Sample previous = null;
+            for (int i = 0; i < count; i++) {
+                String name = readRepeatable(payload, previous == null ? null : previous.name);
+                int labels = readVarint(payload);
+                String[] labelNames = new String[labels];
+                String[] labelValues = new String[labels];
+                for (int j = 0; j < labels; j++) {
+                    boolean sameLabel = previous != null && j < previous.labelNames.size();
+                    labelNames[j] = readRepeatable(payload, sameLabel ? previous.labelNames.get(j) : null);
+                    labelValues[j] = readRepeatable(payload, sameLabel ? previous.labelValues.get(j) : null);
+                }
+                previous = new Sample(name, Arrays.asList(labelNames), Arrays.asList(labelValues), payload.getDouble());
+                samples.add(previous);
+            }
+            families.add(new MetricFamilySamples(familyName, type, help, samples));
+        }
+        return families;
+    }
+
+    private static void writeRepeatable(ByteBuffer target, String value, String previous) {
+        if (value.equals(previous)) {
+            target.put((byte) 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(target, bytes.length + 1);
+        target.put(bytes);
+    }
+
+    private static String readRepeatable(ByteBuffer input, String previous) {
+        int length = readVarint(input);
+        if (length == 0) {
+            if (previous == null) {
+                throw new IllegalStateException("Repeated string without previous one in metrics snapshot");
+            }
+            return previous;
+        }
+        byte[] bytes = new byte[length - 1];
+        input.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer input) {
+        byte[] bytes = new byte[readVarint(input)];
+        input.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(ByteBuffer target, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(target, bytes.length);
+        target.put(bytes);
+    }
+
+    private static void writeVarint(ByteBuffer target, int value) {
+        while ((value & ~0x7f) != 0) {
+            target.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        target.put((byte) value);
+    }
+
+    private static int readVarint(ByteBuffer input) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = input.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IllegalStateException("Negative length in metrics snapshot");
+                }
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint in metrics snapshot");
+    }
+
+    /**
+     * Restored families, immutable
+     */
+    private static final class Baseline {
+        private static final Baseline EMPTY = new Baseline(Collections.emptyList());
+
+        private final Map<String, MetricFamilySamples> families = new LinkedHashMap<>();
+        private final Map<SeriesKey, Double> values = new HashMap<>();
+
+        private Baseline(List<MetricFamilySamples> restored) {
+            for (MetricFamilySamples family : restored) {
+                families.put(family.name, family);
+                for (Sample sample : family.samples) {
+                    values.put(new SeriesKey(sample), sample.value);
+                }
+            }
+        }
+
+        private boolean isEmpty() {
+            return families.isEmpty();
+        }
+
+        private Baseline without(Predicate<String> familyName) {
+            List<MetricFamilySamples> kept = new ArrayList<>();
+            for (MetricFamilySamples family : families.values()) {
+                if (!familyName.test(family.name)) {
+                    kept.add(family);
+                }
+            }
+            return new Baseline(kept);
+        }
+
+        /**
+         * Series restored but not recorded since start are appended to their family, families without live series
+         * are appended at the end
+         */
+        private List<MetricFamilySamples> addTo(Enumeration<MetricFamilySamples> live) {
+            List<MetricFamilySamples> merged = new ArrayList<>();
+            Set<String> liveFamilies = new HashSet<>();
+            while (live.hasMoreElements()) {
+                MetricFamilySamples family = live.nextElement();
+                MetricFamilySamples restored = families.get(family.name);
+                if (restored == null) {
+                    merged.add(family);
+                    continue;
+                }
+                liveFamilies.add(family.name);
+                Set<SeriesKey> continued = new HashSet<>();
+                List<Sample> samples = new ArrayList<>(Math.max(family.samples.size(), restored.samples.size()));
+                for (Sample sample : family.samples) {
+                    SeriesKey key = new SeriesKey(sample);
+                    Double restoredValue = values.get(key);
+                    if (restoredValue == null) {
+                        samples.add(sample);
+                    } else {
+                        continued.add(key);
+                        samples.add(new Sample(sample.name, sample.labelNames, sample.labelValues,
+                            sample.value + restoredValue, sample.exemplar, sample.timestampMs));
+                    }
+                }
+                for (Sample sample : restored.samples) {
+                    if (!continued.contains(new SeriesKey(sample))) {
+                        samples.add(sample);
+                    }
+                }
+                merged.add(new MetricFamilySamples(family.name, family.unit, family.type, family.help, samples));
+            }
+            for (MetricFamilySamples restored : families.values()) {
+                if (!liveFamilies.contains(restored.name)) {
+                    merged.add(restored);
+                }
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * Identifies a sample by name and labels, wraps lists of the sample without copying them
+     */
+    private static final class SeriesKey {
+        private final String name;
+        private final List<String> labelNames;
+        private final List<String> labelValues;
+
+        private SeriesKey(Sample sample) {
+            name = sample.name;
+            labelNames = sample.labelNames;
+            labelValues = sample.labelValues;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) o;
+            return name.equals(other.name) && labelValues.equals(other.labelValues) && labelNames.equals(other.labelNames);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, labelValues);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.rasklaad.wiremock.metrics;
+
+/**
+ * Strips query string and fragment from urls and optionally collapses the path into a route template.
+ * Recently normalized urls are kept in a small direct-mapped cache,
+ * so repeated urls don't allocate new path strings.
+ */
+final class PathNormalizer {
+    private static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private final Entry[] cache;
+    private final int mask;
+    private final PathTemplates templates;
+
+    PathNormalizer() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    PathNormalizer(int cacheSize) {
+        this(cacheSize, null);
+    }
+
+    PathNormalizer(PathTemplates templates) {
+        this(DEFAULT_CACHE_SIZE, templates);
+    }
+
+    PathNormalizer(int cacheSize, PathTemplates templates) {
+        this.templates = templates;
+        int capacity = Integer.highestOneBit(Math.max(cacheSize - 1, 1)) << 1;
+        cache = new Entry[capacity];
+        mask = capacity - 1;
+    }
+
+    String normalize(String url) {
+        int end = pathEnd(url);
+        if (end == url.length() && templates == null) {
+            return url;
+        }
+        int hash = url.hashCode();
+        int index = (hash ^ (hash >>> 16)) & mask;
+        Entry entry = cache[index];
+        if (entry != null && entry.url.equals(url)) {
+            return entry.path;
+        }
+        String path = end == url.length() ? url : url.substring(0, end);
+        if (templates != null) {
+            path = templates.apply(path);
+        }
+        // racy write is fine: entries are immutable and a lost update only costs a cache miss
+        cache[index] = new Entry(url, path);
+        return path;
+    }
+
+    static int pathEnd(String url) {
+        for (int i = 0; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return url.length();
+    }
+
+    private static final class Entry {
+        private final String url;
+        private final String path;
+
+        private Entry(String url, String path) {
+            this.url = url;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.rasklaad.wiremock.metrics;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collapses request paths into route templates. User templates like {@code /orders/{orderId}/items} are compiled
+ * into a segment trie, literal segments take precedence over placeholders. Paths matching no template can have
+ * numeric, uuid and long hex segments replaced with {@value #ID_PLACEHOLDER}.
+ */
+final class PathTemplates {
+    static final String ID_PLACEHOLDER = "{id}";
+    private static final int MIN_HEX_ID_LENGTH = 16;
+    private static final int UUID_LENGTH = 36;
+
+    private final Node root = new Node();
+    private final boolean detectIds;
+
+    PathTemplates(List<String> templates, boolean detectIds) {
+        this.detectIds = detectIds;
+        for (String template : templates) {
+            add(template);
+        }
+    }
+
+    private void add(String template) {
+        if (!template.startsWith("/")) {
+            throw new IllegalStateException("Path template must start with '/', got " + template);
+        }
+        Node node = root;
+        int start = 1;
+        while (true) {
+            int end = segmentEnd(template, start);
+            String segment = template.substring(start, end);
+            node = isPlaceholder(segment) ? node.placeholder() : node.literal(segment);
+            if (end == template.length()) {
+                break;
+            }
+            start = end + 1;
+        }
+        node.template = template;
+    }
+
+    String apply(String path) {
+        if (path.startsWith("/")) {
+            String template = match(root, path, 1);
+            if (template != null) {
+                return template;
+            }
+        }
+        return detectIds ? replaceIds(path) : path;
+    }
+
+    private static String match(Node node, String path, int start) {
+        int end = segmentEnd(path, start);
+        boolean last = end == path.length();
+        if (node.literals != null) {
+            Node literal = node.literals.get(path.substring(start, end));
+            if (literal != null) {
+                String template = last ? literal.template : match(literal, path, end + 1);
+                if (template != null) {
+                    return template;
+                }
+            }
+        }
+        if (node.placeholder != null && end > start) {
+            return last ? node.placeholder.template : match(node.placeholder, path, end + 1);
+        }
+        return null;
+    }
+
+    private static String replaceIds(String path) {
+        StringBuilder result = null;
+        int start = 0;
+        while (start <= path.length()) {
+            int end = segmentEnd(path, start);
+            if (isId(path, start, end)) {
+                if (result == null) {
+                    result = new StringBuilder(path.length()).append(path, 0, start);
+                }
+                result.append(ID_PLACEHOLDER);
+            } else if (result != null) {
+                result.append(path, start, end);
+            }
+            if (end == path.length()) {
+                break;
+            }
+            if (result != null) {
+                result.append('/');
+            }
+            start = end + 1;
+        }
+        return result == null ? path : result.toString();
+    }
+
+    static boolean isId(String path, int start, int end) {
+        int length = end - start;
+        if (length == 0) {
+            return false;
+        }
+        return isNumeric(path, start, end)
+            || length == UUID_LENGTH && isUuid(path, start)
+            || length >= MIN_HEX_ID_LENGTH && isHex(path, start, end);
+    }
+
+    private static boolean isNumeric(String path, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = path.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isUuid(String path, int start) {
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            char c = path.charAt(start + i);
+            boolean dash = i == 8 || i == 13 || i == 18 || i == 23;
+            if (dash ? c != '-' : Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isHex(String path, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (Character.digit(path.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPlaceholder(String segment) {
+        return segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}';
+    }
+
+    private static int segmentEnd(String path, int start) {
+        int end = path.indexOf('/', start);
+        return end < 0 ? path.length() : end;
+    }
+
+    private static final class Node {
+        private Map<String, Node> literals;
+        private Node placeholder;
+        private String template;
+
+        private Node literal(String segment) {
+            if (literals == null) {
+                literals = new HashMap<>();
+            }
+            return literals.computeIfAbsent(segment, key -> new Node());
+        }
+
+        private Node placeholder() {
+            if (placeholder == null) {
+                placeholder = new Node();
+            }
+            return placeholder;
+        }
+    }
+}
@@ -1,160 +1,681 @@
 package com.rasklaad.wiremock.metrics;
 
-import com.github.tomakehurst.wiremock.common.Timing;
 import com.github.tomakehurst.wiremock.core.Admin;
+import com.github.tomakehurst.wiremock.extension.Parameters;
 import com.github.tomakehurst.wiremock.extension.PostServeAction;
-import com.github.tomakehurst.wiremock.http.LoggedResponse;
+import com.github.tomakehurst.wiremock.extension.ServeEventListener;
+import com.github.tomakehurst.wiremock.extension.StubLifecycleListener;
 import com.github.tomakehurst.wiremock.matching.AnythingPattern;
 import com.github.tomakehurst.wiremock.matching.RegexPattern;
 import com.github.tomakehurst.wiremock.matching.UrlPattern;
 import com.github.tomakehurst.wiremock.stubbing.ServeEvent;
-import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+import com.github.tomakehurst.wiremock.stubbing.StubMapping;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Metrics;
-import io.micrometer.core.instrument.binder.jvm.ClassLoaderMetrics;
-import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
-import io.micrometer.core.instrument.binder.jvm.JvmHeapPressureMetrics;
-import io.micrometer.core.instrument.binder.jvm.JvmInfoMetrics;
-import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
-import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
-import io.micrometer.core.instrument.binder.system.ProcessorMetrics;
-import io.micrometer.core.instrument.binder.system.UptimeMetrics;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
 import io.micrometer.prometheus.PrometheusConfig;
 import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exemplars.ExemplarSampler;
 
-import java.net.URI;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
-public class PrometheusMetricsExtension extends PostServeAction {
+import static com.github.tomakehurst.wiremock.common.LocalNotifier.notifier;
+
+public class PrometheusMetricsExtension extends PostServeAction implements StubLifecycleListener, ServeEventListener {
     public static final String EXTENSION_NAME = "prometheus-metrics-extension";
+    private static final ThreadLocal<RequestEvent> LOCAL_EVENT = ThreadLocal.withInitial(RequestEvent::new);
+    private static final long MIN_EVICTION_PERIOD_MILLIS = 100;
+    private static final long MAX_EVICTION_PERIOD_MILLIS = 60_000;
+    private static final Cleaner CLEANER = Cleaner.create();
     private final PrometheusMeterRegistry registry;
-    private MetricsConfiguration configuration;
+    private final MetricsConfiguration configuration;
+    private final Tags instanceTags;
+    private final RequestMetersCache meters;
+    private final StubMetersCache stubMeters;
+    private final PathNormalizer pathNormalizer = new PathNormalizer();
+    private final PathNormalizer requestPathNormalizer;
+    private final AsyncRecorder asyncRecorder;
+    private final Sampler sampler;
+    private final HdrTimings hdrTimings;
+    private final LiveStats liveStats;
+    private final SlowestRequests slowestRequests;
+    private final StubMatching stubMatching;
+    private final SlowestStubs slowestStubs;
+    private final RuntimeSettings runtimeSettings;
+    private final MetricsPersistence persistence;
+    // settings series were created with, written under this
+    private volatile CollectionSettings appliedSettings;
+    private final Counter evictedCounter;
+    private volatile Future<?> eviction;
+    private volatile Counter overflowCounter;
+    private volatile Cleaner.Cleanable release;
 
     public PrometheusMetricsExtension() {
-        registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
-        Metrics.addRegistry(registry);
-        new JvmThreadMetrics().bindTo(registry);
-        new ProcessorMetrics().bindTo(registry);
-        new JvmGcMetrics().bindTo(registry);
-        new JvmInfoMetrics().bindTo(registry);
-        new JvmHeapPressureMetrics().bindTo(registry);
-        new ClassLoaderMetrics().bindTo(registry);
-        new JvmMemoryMetrics().bindTo(registry);
-        new UptimeMetrics().bindTo(registry);
-        configuration = MetricsConfiguration.defaultConfiguration();
+        this(MetricsConfiguration.defaultConfiguration());
     }
 
     public PrometheusMetricsExtension(MetricsConfiguration configuration) {
-        this();
         configuration.validate();
         this.configuration = configuration;
+        if (configuration.getMeterRegistry() != null) {
+            registry = configuration.getMeterRegistry();
+        } else {
+            registry = configuration.areExemplarsEnabled()
+                ? new PrometheusMeterRegistry(PrometheusConfig.DEFAULT, new CollectorRegistry(true), Clock.SYSTEM, exemplarSampler())
+                : new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+            Metrics.addRegistry(registry);
+        }
+        requestPathNormalizer = configuration.shouldDetectPathIds() || !configuration.getPathTemplates().isEmpty()
+            ? new PathNormalizer(new PathTemplates(configuration.getPathTemplates(), configuration.shouldDetectPathIds()))
+            : null;
+        appliedSettings = CollectionSettings.from(configuration);
+        runtimeSettings = RuntimeSettings.register(registry, appliedSettings);
+        instanceTags = configuration.getInstance() == null ? Tags.empty() : Tags.of("instance", configuration.getInstance());
+        sampler = createSampler();
+        hdrTimings = configuration.getHighResolutionBuckets() != null
+            ? HdrTimings.forRegistry(registry.getPrometheusRegistry(), configuration.getHighResolutionBuckets())
+            : null;
+        liveStats = configuration.isLiveStatsEnabled() ? LiveStats.forRegistry(registry) : null;
+        slowestRequests = configuration.getSlowestRequests() != null
+            ? SlowestRequests.forRegistry(registry, configuration.getSlowestRequests())
+            : null;
+        if (configuration.getSlowestStubs() != null) {
+            stubMatching = new StubMatching(registry, instanceTags, configuration.getInstance());
+            slowestStubs = configuration.getSlowestStubs() > 0
+                ? SlowestStubs.forRegistry(registry.getPrometheusRegistry(), configuration.getSlowestStubs())
+                : null;
+        } else {
+            stubMatching = null;
+            slowestStubs = null;
+        }
+        // fingerprint must not capture this, release of a collected extension writes the last checkpoint
+        RuntimeSettings settings = runtimeSettings;
+        persistence = configuration.getPersistenceFile() != null
+            ? new MetricsPersistence(registry, configuration.getPersistenceFile(), configuration.getCheckpointPeriod(),
+                () -> configuration.seriesFingerprint() + "|" + settings.current().toMap())
+            : null;
+        meters = createMetersCache();
+        stubMeters = configuration.shouldUseStubMapping() ? new StubMetersCache(this::createMeters, this::createStubGroup) : null;
+        asyncRecorder = configuration.shouldRecordAsynchronously() ? createAsyncRecorder() : null;
+        if (configuration.getIdleSeriesTtl() != null) {
+            evictedCounter = Counter.builder("wiremock.metrics.evicted")
+                .description("Request meters series removed because they weren't recorded for longer than configured ttl")
+                .tags(instanceTags)
+                .register(registry);
+        } else {
+            evictedCounter = null;
+        }
+    }
+
+    private AsyncRecorder createAsyncRecorder() {
+        AsyncRecorder recorder = new AsyncRecorder(
+            configuration.getAsyncBufferSize(),
+            configuration.getAsyncConsumerThreads(),
+            configuration.getAsyncBackPressure(),
+            this::record
+        );
+        Gauge.builder("wiremock.metrics.async.queue.depth", recorder, AsyncRecorder::queueDepth)
+            .description("Serve events waiting to be recorded")
+            .tags(instanceTags)
+            .register(registry);
+        Gauge.builder("wiremock.metrics.async.queue.capacity", recorder, AsyncRecorder::capacity)
+            .description("Size of the serve events buffer")
+            .tags(instanceTags)
+            .register(registry);
+        FunctionCounter.builder("wiremock.metrics.async.dropped", recorder, AsyncRecorder::droppedEvents)
+            .description("Serve events dropped because the buffer was full or they couldn't be copied")
+            .tags(instanceTags)
+            .register(registry);
+        return recorder;
+    }
+
+    private Sampler createSampler() {
+        Sampler sampler;
+        if (configuration.getSampleRatio() != null) {
+            sampler = Sampler.fixed(configuration.getSampleRatio());
+        } else if (configuration.getSampleTargetEventsPerSecond() != null) {
+            sampler = Sampler.adaptive(configuration.getSampleTargetEventsPerSecond());
+        } else {
+            return null;
+        }
+        Gauge.builder("wiremock.metrics.sample.ratio", sampler, Sampler::ratio)
+            .description("Fraction of requests recorded into timing and size distributions")
+            .tags(instanceTags)
+            .register(registry);
+        return sampler;
+    }
+
+    private RequestMetersCache createMetersCache() {
+        Integer maximumPathSeries = configuration.getMaximumPathSeries();
+        if (maximumPathSeries == null) {
+            return new RequestMetersCache(this::createMeters);
+        }
+        return new RequestMetersCache(this::createMeters, maximumPathSeries, this::countOverflow);
+    }
+
+    private void countOverflow() {
+        Counter counter = overflowCounter;
+        if (counter == null) {
+            counter = Counter.builder("wiremock.metrics.overflow")
+                .description("Requests recorded under " + RequestMetersCache.OVERFLOW_PATH + " path because path series budget was exceeded")
+                .tags(instanceTags)
+                .register(registry);
+            overflowCounter = counter;
+        }
+        counter.increment();
+    }
+
+    private void evictIdleSeries() {
+        long idleNanos = configuration.getIdleSeriesTtl().toNanos();
+        meters.evictIdle(idleNanos, this::evict);
+        if (stubMeters != null) {
+            stubMeters.evictIdle(idleNanos, this::evict);
+        }
+        purgeGroupStats();
+    }
+
+    private void purgeGroupStats() {
+        if (liveStats != null) {
+            liveStats.purge();
+        }
+        if (slowestRequests != null) {
+            slowestRequests.purge();
+        }
+    }
+
+    private void evict(RequestMeters evicted) {
+        remove(evicted);
+        evictedCounter.increment();
+    }
+
+    private void remove(RequestMeters removed) {
+        for (Meter meter : removed.meters()) {
+            registry.remove(meter);
+        }
+        for (HdrTimings.Series series : removed.highResolutionSeries()) {
+            hdrTimings.remove(series);
+        }
+    }
+
+    @Override
+    public void start() {
+        JvmMetricsBinder jvmMetricsBinder = JvmMetricsBinder.acquire(registry, configuration.getJvmMetrics());
+        release = CLEANER.register(this, new Release(registry, runtimeSettings, jvmMetricsBinder, persistence));
+        if (persistence != null) {
+            persistence.start();
+        }
+        if (slowestStubs != null) {
+            slowestStubs.add(stubMatching);
+        }
+        if (asyncRecorder != null) {
+            asyncRecorder.start();
+        }
+        if (configuration.getIdleSeriesTtl() != null) {
+            long ttlMillis = configuration.getIdleSeriesTtl().toMillis();
+            long periodMillis = Math.min(Math.max(ttlMillis / 2, MIN_EVICTION_PERIOD_MILLIS), MAX_EVICTION_PERIOD_MILLIS);
+            eviction = BackgroundTasks.scheduleWithFixedDelay(this, PrometheusMetricsExtension::evictIdleSeries, periodMillis);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (release != null) {
+            release.clean();
+        }
+        if (slowestStubs != null) {
+            slowestStubs.remove(stubMatching);
+        }
+        if (asyncRecorder != null) {
+            asyncRecorder.stop();
+        }
+        if (eviction != null) {
+            eviction.cancel(false);
+        }
+    }
+
+    /**
+     * Releases what servers share through the registry: runtime settings and jvm metrics with their GC listeners,
+     * which keep the registry reachable until closed, and writes the last checkpoint of persisted metrics.
+     * Wiremock stops extensions only when it's shut down through admin api, so this also runs once extension
+     * of a server stopped with {@code WireMockServer.stop()} is collected.
+     * Must not reference the extension, otherwise it's never collected.
+     */
+    private static final class Release implements Runnable {
+        private final MeterRegistry registry;
+        private final RuntimeSettings runtimeSettings;
+        private final JvmMetricsBinder jvmMetricsBinder;
+        private final MetricsPersistence persistence;
+
+        private Release(MeterRegistry registry, RuntimeSettings runtimeSettings, JvmMetricsBinder jvmMetricsBinder,
+                        MetricsPersistence persistence) {
+            this.registry = registry;
+            this.runtimeSettings = runtimeSettings;
+            this.jvmMetricsBinder = jvmMetricsBinder;
+            this.persistence = persistence;
+        }
+
+        @Override
+        public void run() {
+            if (persistence != null) {
+                try {
+                    persistence.stop();
+                } catch (UncheckedIOException e) {
+                    notifier().error("Failed to write the last checkpoint of request metrics", e);
+                }
+            }
+            runtimeSettings.unregister(registry);
+            jvmMetricsBinder.release(registry);
+        }
+    }
+
+    @Override
+    public void beforeMatch(ServeEvent serveEvent, Parameters parameters) {
+        if (stubMatching != null) {
+            StubMatching.beforeMatch();
+        }
+    }
+
+    @Override
+    public void afterMatch(ServeEvent serveEvent, Parameters parameters) {
+        if (stubMatching != null) {
+            StubMatching.afterMatch();
+        }
     }
 
     @Override
     public void doGlobalAction(ServeEvent serveEvent, Admin admin) {
         super.doGlobalAction(serveEvent, admin);
-        Timing timing = serveEvent.getTiming();
-        LoggedRequest request = serveEvent.getRequest();
-        LoggedResponse response = serveEvent.getResponse();
+        long matchNanos = -1;
+        long respondNanos = -1;
+        if (stubMatching != null) {
+            // post serve actions run after the response is sent
+            respondNanos = StubMatching.respondNanos();
+            matchNanos = StubMatching.takeMatchNanos();
+        }
+        boolean traced = configuration.areExemplarsEnabled();
+        if (asyncRecorder != null) {
+            asyncRecorder.publish(serveEvent, matchNanos, respondNanos, traced, configuration.getTraceHeader());
+            return;
+        }
+        RequestEvent event = LOCAL_EVENT.get();
+        event.copyFrom(serveEvent, matchNanos, respondNanos, traced, configuration.getTraceHeader());
+        record(event);
+    }
 
-        String requestUrlPath = request.getUrl();
-        String method = request.getMethod().getName();
-        String status = String.valueOf(response.getStatus());
+    /**
+     * Exemplar sampler for registries passed to {@link MetricsConfiguration#meterRegistry(PrometheusMeterRegistry)}
+     * when exemplars are enabled, e.g.
+     * {@code new PrometheusMeterRegistry(PrometheusConfig.DEFAULT, new CollectorRegistry(true), Clock.SYSTEM, PrometheusMetricsExtension.exemplarSampler())}
+     */
+    public static ExemplarSampler exemplarSampler() {
+        return RequestExemplars.INSTANCE;
+    }
 
-        if (!serveEvent.getWasMatched()) {
-            if (configuration.shouldRegisterNotMatchedRequests()) {
-                registerByUrlPath(timing, requestUrlPath, method, status);
+    private void record(RequestEvent event) {
+        if (!configuration.areExemplarsEnabled()) {
+            recordMeters(event);
+            return;
+        }
+        RequestExemplars.begin(event);
+        try {
+            recordMeters(event);
+        } finally {
+            RequestExemplars.end();
+        }
+    }
+
+    private void recordMeters(RequestEvent event) {
+        CollectionSettings settings = runtimeSettings.current();
+        if (settings != appliedSettings) {
+            applySettings(settings);
+        }
+        event.sampled = sampler == null || sampler.sample();
+        if (stubMatching != null && event.sampled) {
+            stubMatching.record(event);
+        }
+        if (!event.wasMatched) {
+            if (settings.registerNotMatchedRequests) {
+                registerByUrlPath(event, event.url, settings);
             }
             return;
         }
 
         if (configuration.shouldUseRequestUrl()) {
-            registerByUrlPath(timing, requestUrlPath, method, status);
+            registerByUrlPath(event, event.url, settings);
             return;
         }
 
-        UrlPattern urlPattern = serveEvent.getStubMapping().getRequest().getUrlMatcher();
+        if (stubMeters != null) {
+            RequestMeters recorded;
+            do {
+                recorded = stubMeters.get(event.stubMapping, event.method, event.status);
+                // meters were removed concurrently when it fails, next lookup returns new ones
+            } while (!recorded.tryRecord(event));
+            recorded.recordGroup(event);
+            return;
+        }
+
+        UrlPattern urlPattern = event.urlPattern;
         if (configuration.shouldUseMappingUrlPattern()) {
-            if (urlPattern == UrlPattern.ANY && configuration.shouldRegisterAnyUrlMappingAsRequestUrl()) {
-                registerByUrlPath(timing, requestUrlPath, method, status);
+            if (urlPattern == UrlPattern.ANY && settings.registerAnyUrlMappingAsRequestUrl) {
+                registerByUrlPath(event, event.url, settings);
             } else {
-                registerByUrlMapping(timing, urlPattern, method, status);
+                registerByUrlMapping(event, urlPattern, settings);
             }
         }
 
     }
 
-    private void registerByUrlMapping(Timing timing, UrlPattern urlPattern, String method, String status) {
+    /**
+     * Drops only series the change invalidates. Path settings change labels of request series, so those are
+     * recreated. Toggled metrics rebuild meters in place: meters that stay enabled are registered under the same ids
+     * and keep their values, disabled ones are removed. Requests that read previous settings just before the swap
+     * can still bring some of the dropped series back, idle eviction cleans them up then
+     */
+    private synchronized void applySettings(CollectionSettings settings) {
+        CollectionSettings previous = appliedSettings;
+        if (settings == previous) {
+            return;
+        }
+        appliedSettings = settings;
+        if (settings.labelsPathsDifferentlyThan(previous)) {
+            meters.clear(this::remove);
+            // stub groups take their path from the stub, any url mappings don't affect them
+            if (stubMeters != null && settings.ignoreQueryParams != previous.ignoreQueryParams) {
+                stubMeters.clear(this::remove);
+            }
+            purgeGroupStats();
+            if (persistence != null) {
+                persistence.dropBaseline(family -> family.startsWith("wiremock_request") || family.startsWith("wiremock_response"));
+            }
+        }
+        if (!settings.recordsSameMetersAs(previous)) {
+            meters.rebuild(this::rebuildMeters);
+            if (stubMeters != null) {
+                stubMeters.rebuild(this::rebuildMeters);
+            }
+            if (persistence != null) {
+                List<String> disabled = disabledFamilies(previous, settings);
+                persistence.dropBaseline(family -> disabled.stream().anyMatch(prefix -> family.startsWith(prefix + "_")));
+            }
+        }
+    }
+
+    private RequestMeters rebuildMeters(MetersGroup group, RequestMeters previous) {
+        RequestMeters rebuilt = createMeters(group, previous.method(), previous.status(), previous);
+        Set<Meter> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+        kept.addAll(rebuilt.meters());
+        for (Meter meter : previous.meters()) {
+            if (!kept.contains(meter)) {
+                registry.remove(meter);
+            }
+        }
+        List<HdrTimings.Series> keptSeries = rebuilt.highResolutionSeries();
+        for (HdrTimings.Series series : previous.highResolutionSeries()) {
+            if (!keptSeries.contains(series)) {
+                hdrTimings.remove(series);
+            }
+        }
+        return rebuilt;
+    }
+
+    /**
+     * @return name prefixes of prometheus families that previous settings recorded and new ones don't
+     */
+    private static List<String> disabledFamilies(CollectionSettings previous, CollectionSettings settings) {
+        List<String> disabled = new ArrayList<>();
+        if (previous.totalTimeMetricEnabled && !settings.totalTimeMetricEnabled) {
+            disabled.add("wiremock_request_totalTime");
+        }
+        if (previous.processingTimeMetricEnabled && !settings.processingTimeMetricEnabled) {
+            disabled.add("wiremock_request_processingTime");
+        }
+        if (previous.serveTimeMetricEnabled && !settings.serveTimeMetricEnabled) {
+            disabled.add("wiremock_request_serveTime");
+        }
+        if (previous.responseSendTimeEnabled && !settings.responseSendTimeEnabled) {
+            disabled.add("wiremock_request_responseSendTime");
+        }
+        if (previous.requestBodySizeMetricEnabled && !settings.requestBodySizeMetricEnabled) {
+            disabled.add("wiremock_request_bodySize");
+        }
+        if (previous.responseBodySizeMetricEnabled && !settings.responseBodySizeMetricEnabled) {
+            disabled.add("wiremock_response_bodySize");
+        }
+        if (previous.delayMetricsEnabled && !settings.delayMetricsEnabled) {
+            disabled.add("wiremock_request_configuredDelay");
+            disabled.add("wiremock_request_delayOvershoot");
+        }
+        return disabled;
+    }
+
+    private void registerByUrlMapping(RequestEvent event, UrlPattern urlPattern, CollectionSettings settings) {
+        register(event, mappingPath(urlPattern, settings));
+    }
+
+    private String mappingPath(UrlPattern urlPattern, CollectionSettings settings) {
         String mappingUrlPath = urlPattern.getExpected();
         if (!(urlPattern.getPattern() instanceof RegexPattern) || !(urlPattern.getPattern() instanceof AnythingPattern)) {
-            if (configuration.shouldIgnoreQueryParams()) {
-                try {
-                    URI uri = URI.create(mappingUrlPath);
-                    mappingUrlPath = uri.getPath();
-                } catch (IllegalArgumentException e) {
-                    // can't ignore query param; fallback to mapping url
-                }
+            if (settings.ignoreQueryParams) {
+                mappingUrlPath = pathNormalizer.normalize(mappingUrlPath);
             }
         }
-        register(timing, mappingUrlPath, method, status);
+        return mappingUrlPath;
     }
 
-    private void registerByUrlPath(Timing timing, String urlPath, String method, String statusCode) {
+    private MetersGroup createStubGroup(StubMapping stub) {
+        String name = stub.getName() != null ? stub.getName() : stub.getId().toString();
+        return new MetersGroup(mappingPath(stub.getRequest().getUrlMatcher(), runtimeSettings.current()), name);
+    }
+
+    private void registerByUrlPath(RequestEvent event, String urlPath, CollectionSettings settings) {
         String path = urlPath;
-        if (configuration.shouldIgnoreQueryParams()) {
-            try {
-                URI uri = URI.create(path);
-                path = uri.getPath();
-            } catch (IllegalArgumentException e) {
-                // can't ignore query param; fallback to full url
-            }
+        if (requestPathNormalizer != null) {
+            path = requestPathNormalizer.normalize(path);
+        } else if (settings.ignoreQueryParams) {
+            path = pathNormalizer.normalize(path);
         }
-        register(timing, path, method, statusCode);
+        register(event, path);
     }
 
-    private void register(Timing timing, String path, String method, String statusCode) {
-        if (configuration.isTotalTimeMetricEnabled()) {
-            DistributionSummary totalTimeSummary = DistributionSummary.builder("wiremock.request.totalTime")
+    private void register(RequestEvent event, String path) {
+        RequestMeters recorded;
+        do {
+            recorded = meters.get(path, event.method, event.status);
+            // meters were evicted concurrently when it fails, next lookup returns new ones
+        } while (!recorded.tryRecord(event));
+        recorded.recordGroup(event);
+    }
+
+    private RequestMeters createMeters(MetersGroup group, String method, int status) {
+        return createMeters(group, method, status, null);
+    }
+
+    /**
+     * @param previous meters of the same key built with previous settings, their request count and high resolution
+     *                 series are carried over, null for new key
+     */
+    private RequestMeters createMeters(MetersGroup group, String method, int status, RequestMeters previous) {
+        CollectionSettings settings = runtimeSettings.current();
+        Tags tags = Tags.of("path", group.path(), "method", method, "status", String.valueOf(status)).and(instanceTags);
+        if (stubMeters != null) {
+            tags = tags.and("stub", group.stub() != null ? group.stub() : "");
+        }
+        Tags requestTags = tags;
+        if (sampler != null) {
+            tags = tags.and("sampled", "true");
+        }
+        DistributionSummary totalTimeSummary = null;
+        DistributionSummary processingTimeSummary = null;
+        DistributionSummary serveTimeSummary = null;
+        DistributionSummary responseSendTime = null;
+        DistributionSummary requestBodySize = null;
+        DistributionSummary responseBodySize = null;
+
+        if (settings.totalTimeMetricEnabled && hdrTimings == null) {
+            totalTimeSummary = summaryBuilder("wiremock.request.totalTime", configuration.getTotalTimeHistogram())
                 .baseUnit("ms")
-                .publishPercentileHistogram()
-                .maximumExpectedValue(configuration.getMaximumMetricExpectedValue())
                 .description("Request time latency")
-                .tags("path", path, "method", method, "status", statusCode)
-                .register(Metrics.globalRegistry);
-            totalTimeSummary.record(timing.getTotalTime());
+                .tags(tags)
+                .register(registry);
         }
 
-        if (configuration.isProcessingTimeMetricEnabled()) {
-            DistributionSummary processingTimeSummary = DistributionSummary.builder("wiremock.request.processingTime")
+        if (settings.processingTimeMetricEnabled && hdrTimings == null) {
+            processingTimeSummary = summaryBuilder("wiremock.request.processingTime", configuration.getProcessingTimeHistogram())
                 .baseUnit("ms")
-                .publishPercentileHistogram()
-                .maximumExpectedValue(configuration.getMaximumMetricExpectedValue())
                 .description("Processing time latency")
-                .tags("path", path, "method", method, "status", statusCode)
+                .tags(tags)
                 .register(registry);
-            processingTimeSummary.record(timing.getProcessTime());
         }
 
-        if (configuration.isServeTimeMetricEnabled()) {
-            DistributionSummary serveTimeSummary = DistributionSummary.builder("wiremock.request.serveTime")
+        if (settings.serveTimeMetricEnabled && hdrTimings == null) {
+            serveTimeSummary = summaryBuilder("wiremock.request.serveTime", configuration.getServeTimeHistogram())
                 .baseUnit("ms")
-                .publishPercentileHistogram()
-                .maximumExpectedValue(configuration.getMaximumMetricExpectedValue())
                 .description("Serve time latency")
-                .tags("path", path, "method", method, "status", statusCode)
+                .tags(tags)
                 .register(registry);
-            serveTimeSummary.record(timing.getServeTime());
         }
 
-        if (configuration.isResponseSendTimeEnabled()) {
-            DistributionSummary responseSendTime = DistributionSummary.builder("wiremock.request.responseSendTime")
+        if (settings.responseSendTimeEnabled && hdrTimings == null) {
+            responseSendTime = summaryBuilder("wiremock.request.responseSendTime", configuration.getResponseSendTimeHistogram())
                 .baseUnit("ms")
-                .publishPercentileHistogram()
-                .maximumExpectedValue(configuration.getMaximumMetricExpectedValue())
                 .description("Response send time latency")
-                .tags("path", path, "method", method, "status", statusCode)
+                .tags(tags)
+                .register(registry);
+        }
+
+        if (settings.requestBodySizeMetricEnabled) {
+            requestBodySize = DistributionSummary.builder("wiremock.request.bodySize")
+                .baseUnit("bytes")
+                .description("Request body size")
+                .tags(tags)
+                .register(registry);
+        }
+
+        if (settings.responseBodySizeMetricEnabled) {
+            responseBodySize = DistributionSummary.builder("wiremock.response.bodySize")
+                .baseUnit("bytes")
+                .description("Response body size")
+                .tags(tags)
                 .register(registry);
+        }
+
+        RequestMeters meters = new RequestMeters(method, status, totalTimeSummary, processingTimeSummary, serveTimeSummary, responseSendTime,
+            requestBodySize, responseBodySize);
+        if (hdrTimings != null) {
+            List<String> labelNames = new ArrayList<>();
+            List<String> labelValues = new ArrayList<>();
+            for (Tag tag : tags) {
+                labelNames.add(tag.getKey());
+                labelValues.add(tag.getValue());
+            }
+            meters.recordHighResolution(
+                settings.totalTimeMetricEnabled ? hdrSeries(previous, "wiremock_request_totalTime_hdr_ms", "Request time latency", labelNames, labelValues) : null,
+                settings.processingTimeMetricEnabled ? hdrSeries(previous, "wiremock_request_processingTime_hdr_ms", "Processing time latency", labelNames, labelValues) : null,
+                settings.serveTimeMetricEnabled ? hdrSeries(previous, "wiremock_request_serveTime_hdr_ms", "Serve time latency", labelNames, labelValues) : null,
+                settings.responseSendTimeEnabled ? hdrSeries(previous, "wiremock_request_responseSendTime_hdr_ms", "Response send time latency", labelNames, labelValues) : null
+            );
+        }
+        if (sampler != null && previous != null) {
+            meters.countRequests(previous);
+        } else if (sampler != null) {
+            LongAdder requestCount = new LongAdder();
+            FunctionCounter requestCounter = FunctionCounter.builder("wiremock.requests", requestCount, LongAdder::sum)
+                .description("Exact number of requests, timings are sampled")
+                .tags(requestTags)
+                .register(registry);
+            meters.countRequests(requestCount, requestCounter);
+        }
+        if (settings.delayMetricsEnabled) {
+            meters.recordDelays(
+                DistributionSummary.builder("wiremock.request.configuredDelay")
+                    .baseUnit("ms")
+                    .description("Delay configured for the response: fixed or sampled random delay plus chunked dribble duration")
+                    .tags(tags)
+                    .register(registry),
+                summaryBuilder("wiremock.request.delayOvershoot", configuration.getServeTimeHistogram())
+                    .baseUnit("ms")
+                    .description("Serve time exceeding configured delay")
+                    .tags(tags)
+                    .register(registry)
+            );
+        }
+        if (liveStats != null) {
+            meters.recordLive(liveStats.window(group, configuration.getInstance()));
+        }
+        if (slowestRequests != null) {
+            meters.recordSlowest(slowestRequests.ring(group, configuration.getInstance()));
+        }
+        return meters;
+    }
+
+    private HdrTimings.Series hdrSeries(RequestMeters previous, String name, String description,
+                                        List<String> labelNames, List<String> labelValues) {
+        HdrTimings.Series existing = previous != null ? previous.highResolutionSeries(name) : null;
+        return existing != null ? existing : hdrTimings.create(name, description, labelNames, labelValues);
+    }
 
-            responseSendTime.record(timing.getResponseSendTime());
+    private DistributionSummary.Builder summaryBuilder(String name, HistogramMode histogramMode) {
+        return histogramMode.apply(DistributionSummary.builder(name), configuration.getMaximumMetricExpectedValue());
+    }
+
+    @Override
+    public void afterStubCreated(StubMapping stub) {
+        if (stubMatching != null) {
+            stubMatching.stubCreated(stub);
+        }
+        if (stubMeters != null) {
+            stubMeters.add(stub, this::remove);
+        }
+    }
+
+    @Override
+    public void afterStubEdited(StubMapping oldStub, StubMapping newStub) {
+        if (stubMatching != null) {
+            stubMatching.stubEdited(oldStub, newStub);
+        }
+        if (stubMeters != null) {
+            stubMeters.remove(oldStub.getId(), this::remove);
+            stubMeters.add(newStub, this::remove);
+            purgeGroupStats();
+        }
+    }
+
+    @Override
+    public void afterStubRemoved(StubMapping stub) {
+        if (stubMatching != null) {
+            stubMatching.stubRemoved(stub);
+        }
+        if (stubMeters != null) {
+            stubMeters.remove(stub.getId(), this::remove);
+            purgeGroupStats();
+        }
+    }
+
+    @Override
+    public void afterStubsReset() {
+        if (stubMatching != null) {
+            stubMatching.stubsReset();
+        }
+        if (stubMeters != null) {
+            stubMeters.clear(this::remove);
+            purgeGroupStats();
         }
     }
 
@@ -0,0 +1,131 @@
+package com.rasklaad.wiremock.metrics;
+
+import com.github.tomakehurst.wiremock.common.Timing;
+import com.github.tomakehurst.wiremock.http.ChunkedDribbleDelay;
+import com.github.tomakehurst.wiremock.http.HttpHeader;
+import com.github.tomakehurst.wiremock.http.HttpHeaders;
+import com.github.tomakehurst.wiremock.http.ResponseDefinition;
+import com.github.tomakehurst.wiremock.matching.UrlPattern;
+import com.github.tomakehurst.wiremock.stubbing.ServeEvent;
+import com.github.tomakehurst.wiremock.stubbing.StubMapping;
+
+import java.util.UUID;
+
+/**
+ * Fields of {@link ServeEvent} needed for recording. Instances are reused, so nothing should keep a reference to them.
+ */
+final class RequestEvent {
+    String url;
+    String method;
+    int status;
+    // epoch millis when request was received
+    long loggedDate;
+    // what trace id is taken from, null unless exemplars are enabled; the id is built only for events that end up
+    // in an exemplar or slowest requests, see traceId()
+    private UUID serveEventId;
+    private String traceHeaderValue;
+    private boolean traceparent;
+    private String traceId;
+    boolean wasMatched;
+    // null when request wasn't matched
+    UrlPattern urlPattern;
+    // null when request wasn't matched
+    StubMapping stubMapping;
+    int totalTime;
+    int processTime;
+    int serveTime;
+    int responseSendTime;
+    // delay wiremock added to the response, 0 when there was none
+    int configuredDelay;
+    // -1 when unknown
+    long requestBodySize;
+    long responseBodySize;
+    // -1 unless stub matching is measured
+    long matchNanos = -1;
+    // from matching until the response was sent, -1 unless stub matching is measured
+    long respondNanos = -1;
+    // false when distributions skip this event, set by recorder
+    boolean sampled = true;
+
+    /**
+     * @param traced whether exemplars are enabled
+     * @param traceHeader request header with trace id, null to use serve event id
+     */
+    void copyFrom(ServeEvent serveEvent, long matchNanos, long respondNanos, boolean traced, String traceHeader) {
+        this.matchNanos = matchNanos;
+        this.respondNanos = respondNanos;
+        serveEventId = traced ? serveEvent.getId() : null;
+        traceHeaderValue = traced && traceHeader != null ? serveEvent.getRequest().getHeader(traceHeader) : null;
+        traceparent = "traceparent".equalsIgnoreCase(traceHeader);
+        traceId = null;
+        Timing timing = serveEvent.getTiming();
+        url = serveEvent.getRequest().getUrl();
+        method = serveEvent.getRequest().getMethod().getName();
+        status = serveEvent.getResponse().getStatus();
+        loggedDate = serveEvent.getRequest().getLoggedDate().getTime();
+        wasMatched = serveEvent.getWasMatched();
+        stubMapping = wasMatched ? serveEvent.getStubMapping() : null;
+        urlPattern = wasMatched ? stubMapping.getRequest().getUrlMatcher() : null;
+        totalTime = timing.getTotalTime();
+        processTime = timing.getProcessTime();
+        serveTime = timing.getServeTime();
+        responseSendTime = timing.getResponseSendTime();
+        configuredDelay = configuredDelay(timing, serveEvent.getResponseDefinition());
+        requestBodySize = bodySize(serveEvent.getRequest().getBody(), serveEvent.getRequest().getHeaders());
+        responseBodySize = bodySize(serveEvent.getResponse().getBody(), serveEvent.getResponse().getHeaders());
+    }
+
+    /**
+     * Trace id from configured header, trace id part of w3c {@code traceparent} header, or serve event id.
+     * Built on first call, most events are recorded without it
+     *
+     * @return null unless exemplars are enabled
+     */
+    String traceId() {
+        if (traceId != null || serveEventId == null) {
+            return traceId;
+        }
+        String value = traceHeaderValue;
+        if (value == null || value.isEmpty()) {
+            traceId = serveEventId.toString();
+        } else if (traceparent) {
+            // version-traceid-parentid-flags
+            String[] parts = value.split("-");
+            traceId = parts.length == 4 ? parts[1] : value;
+        } else {
+            traceId = value;
+        }
+        return traceId;
+    }
+
+    /**
+     * Added delay is fixed delay or the sample of random delay distribution chosen for this response,
+     * dribble delay is spread over sending the body
+     */
+    private static int configuredDelay(Timing timing, ResponseDefinition responseDefinition) {
+        int delay = timing.getAddedDelay() == null ? 0 : timing.getAddedDelay();
+        ChunkedDribbleDelay dribbleDelay = responseDefinition == null ? null : responseDefinition.getChunkedDribbleDelay();
+        if (dribbleDelay != null && dribbleDelay.getTotalDuration() != null) {
+            delay += dribbleDelay.getTotalDuration();
+        }
+        return delay;
+    }
+
+    /**
+     * Body arrays are returned by reference, so taking their length doesn't copy or decode them
+     */
+    private static long bodySize(byte[] body, HttpHeaders headers) {
+        if (body != null) {
+            return body.length;
+        }
+        HttpHeader contentLength = headers == null ? null : headers.getHeader("Content-Length");
+        if (contentLength == null || !contentLength.isPresent()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.firstValue().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
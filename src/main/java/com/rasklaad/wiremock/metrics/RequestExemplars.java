@@ -0,0 +1,53 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.prometheus.client.exemplars.Exemplar;
+import io.prometheus.client.exemplars.ExemplarSampler;
+
+/**
+ * Attaches trace id of the request being recorded to histogram buckets and counters as OpenMetrics exemplar.
+ * The extension sets trace id on the recording thread around recording of a request, meters recorded without it
+ * don't get exemplars. A bucket keeps its exemplar for at least a second, so busy buckets don't allocate per request.
+ */
+final class RequestExemplars implements ExemplarSampler {
+    static final RequestExemplars INSTANCE = new RequestExemplars();
+    // event being recorded, its trace id is built only when a bucket takes a new exemplar
+    private static final ThreadLocal<RequestEvent> EVENT = new ThreadLocal<>();
+    private static final long MIN_RETENTION_MILLIS = 1000;
+
+    private RequestExemplars() {
+    }
+
+    static void begin(RequestEvent event) {
+        EVENT.set(event);
+    }
+
+    static void end() {
+        EVENT.set(null);
+    }
+
+    @Override
+    public Exemplar sample(double increment, Exemplar previous) {
+        return exemplar(increment, previous);
+    }
+
+    @Override
+    public Exemplar sample(double value, double bucketFrom, double bucketTo, Exemplar previous) {
+        return exemplar(value, previous);
+    }
+
+    /**
+     * @return null to keep previous exemplar
+     */
+    private static Exemplar exemplar(double value, Exemplar previous) {
+        RequestEvent event = EVENT.get();
+        if (event == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (previous != null && previous.getTimestampMs() != null && now - previous.getTimestampMs() < MIN_RETENTION_MILLIS) {
+            return null;
+        }
+        String traceId = event.traceId();
+        return traceId == null ? null : new Exemplar(value, now, "trace_id", traceId);
+    }
+}
@@ -0,0 +1,280 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Meter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+final class RequestMeters {
+    private final String method;
+    private final int status;
+
+    // null when corresponding metric is disabled
+    private final DistributionSummary totalTime;
+    private final DistributionSummary processingTime;
+    private final DistributionSummary serveTime;
+    private final DistributionSummary responseSendTime;
+    private final DistributionSummary requestBodySize;
+    private final DistributionSummary responseBodySize;
+    // null unless delay metrics are enabled
+    private DistributionSummary configuredDelay;
+    private DistributionSummary delayOvershoot;
+    // exact number of requests when distributions are sampled, null otherwise
+    private LongAdder requestCount;
+    private FunctionCounter requestCounter;
+    // null unless high resolution timings are enabled, replace corresponding summaries then
+    private HdrTimings.Series totalTimeSeries;
+    private HdrTimings.Series processingTimeSeries;
+    private HdrTimings.Series serveTimeSeries;
+    private HdrTimings.Series responseSendTimeSeries;
+    // shared by meters of a group, null unless live stats are enabled
+    private LiveStats.Window liveWindow;
+    // shared by meters of a group, null unless slowest requests are kept
+    private SlowestRequests.Ring slowestRequests;
+
+    // recorders set the flag, eviction sweep resets it and remembers when it saw it set
+    private volatile boolean recorded = true;
+    private volatile boolean evicted;
+    private long lastRecordedNanos = System.nanoTime();
+
+    RequestMeters(String method, int status,
+                  DistributionSummary totalTime,
+                  DistributionSummary processingTime,
+                  DistributionSummary serveTime,
+                  DistributionSummary responseSendTime,
+                  DistributionSummary requestBodySize,
+                  DistributionSummary responseBodySize) {
+        this.method = method;
+        this.status = status;
+        this.totalTime = totalTime;
+        this.processingTime = processingTime;
+        this.serveTime = serveTime;
+        this.responseSendTime = responseSendTime;
+        this.requestBodySize = requestBodySize;
+        this.responseBodySize = responseBodySize;
+    }
+
+    /**
+     * Called before meters are published to other threads
+     */
+    void countRequests(LongAdder requestCount, FunctionCounter requestCounter) {
+        this.requestCount = requestCount;
+        this.requestCounter = requestCounter;
+    }
+
+    /**
+     * Called before meters are published to other threads, continues count of meters built with previous settings
+     */
+    void countRequests(RequestMeters previous) {
+        countRequests(previous.requestCount, previous.requestCounter);
+    }
+
+    /**
+     * Called before meters are published to other threads
+     */
+    void recordDelays(DistributionSummary configuredDelay, DistributionSummary delayOvershoot) {
+        this.configuredDelay = configuredDelay;
+        this.delayOvershoot = delayOvershoot;
+    }
+
+    /**
+     * Called before meters are published to other threads
+     */
+    void recordHighResolution(HdrTimings.Series totalTime, HdrTimings.Series processingTime,
+                              HdrTimings.Series serveTime, HdrTimings.Series responseSendTime) {
+        totalTimeSeries = totalTime;
+        processingTimeSeries = processingTime;
+        serveTimeSeries = serveTime;
+        responseSendTimeSeries = responseSendTime;
+    }
+
+    /**
+     * Called before meters are published to other threads
+     */
+    void recordLive(LiveStats.Window liveWindow) {
+        this.liveWindow = liveWindow;
+    }
+
+    /**
+     * Called before meters are published to other threads
+     */
+    void recordSlowest(SlowestRequests.Ring slowestRequests) {
+        this.slowestRequests = slowestRequests;
+    }
+
+    String method() {
+        return method;
+    }
+
+    int status() {
+        return status;
+    }
+
+    boolean matches(String method, int status) {
+        return this.status == status && this.method.equals(method);
+    }
+
+    /**
+     * Live window and slowest requests are shared by meters of the group and outlive them, so they are updated by
+     * {@link #recordGroup} once the event landed in meters that weren't evicted.
+     *
+     * @return false when meters were evicted, event must be recorded to new meters then
+     */
+    boolean tryRecord(RequestEvent event) {
+        if (!recorded) {
+            recorded = true;
+        }
+        if (evicted) {
+            return false;
+        }
+        if (event.sampled) {
+            recordDistributions(event);
+        }
+        // evicted while recording: value could have landed in removed meters
+        if (evicted) {
+            return false;
+        }
+        // counted only once the event can't be retried, the count is shared with rebuilt meters and must stay exact
+        if (requestCount != null) {
+            requestCount.increment();
+        }
+        return true;
+    }
+
+    private void recordDistributions(RequestEvent event) {
+        if (totalTime != null) {
+            totalTime.record(event.totalTime);
+        }
+        if (processingTime != null) {
+            processingTime.record(event.processTime);
+        }
+        if (serveTime != null) {
+            serveTime.record(event.serveTime);
+        }
+        if (responseSendTime != null) {
+            responseSendTime.record(event.responseSendTime);
+        }
+        if (totalTimeSeries != null) {
+            totalTimeSeries.record(event.totalTime);
+        }
+        if (processingTimeSeries != null) {
+            processingTimeSeries.record(event.processTime);
+        }
+        if (serveTimeSeries != null) {
+            serveTimeSeries.record(event.serveTime);
+        }
+        if (responseSendTimeSeries != null) {
+            responseSendTimeSeries.record(event.responseSendTime);
+        }
+        if (delayOvershoot != null && event.configuredDelay > 0) {
+            configuredDelay.record(event.configuredDelay);
+            // serve time is whole milliseconds and may come out just below the delay
+            delayOvershoot.record(Math.max(0, event.serveTime - event.configuredDelay));
+        }
+        // negative size means it's unknown
+        if (requestBodySize != null && event.requestBodySize >= 0) {
+            requestBodySize.record(event.requestBodySize);
+        }
+        if (responseBodySize != null && event.responseBodySize >= 0) {
+            responseBodySize.record(event.responseBodySize);
+        }
+    }
+
+    /**
+     * Called once per event after {@link #tryRecord} succeeded, retries to new meters would record it twice otherwise
+     */
+    void recordGroup(RequestEvent event) {
+        if (liveWindow != null) {
+            liveWindow.record(event.totalTime, event.status);
+        }
+        if (slowestRequests != null) {
+            slowestRequests.offer(event);
+        }
+    }
+
+    boolean isEvicted() {
+        return evicted;
+    }
+
+    /**
+     * Called by a single sweeping thread.
+     */
+    boolean tryEvict(long now, long idleNanos) {
+        if (recorded) {
+            recorded = false;
+            lastRecordedNanos = now;
+            return false;
+        }
+        if (now - lastRecordedNanos < idleNanos) {
+            return false;
+        }
+        evicted = true;
+        return true;
+    }
+
+    void evict() {
+        evicted = true;
+    }
+
+    List<Meter> meters() {
+        List<Meter> meters = new ArrayList<>(9);
+        if (totalTime != null) {
+            meters.add(totalTime);
+        }
+        if (processingTime != null) {
+            meters.add(processingTime);
+        }
+        if (serveTime != null) {
+            meters.add(serveTime);
+        }
+        if (responseSendTime != null) {
+            meters.add(responseSendTime);
+        }
+        if (requestBodySize != null) {
+            meters.add(requestBodySize);
+        }
+        if (requestCounter != null) {
+            meters.add(requestCounter);
+        }
+        if (responseBodySize != null) {
+            meters.add(responseBodySize);
+        }
+        if (configuredDelay != null) {
+            meters.add(configuredDelay);
+            meters.add(delayOvershoot);
+        }
+        return meters;
+    }
+
+    /**
+     * @return null when there is no series with the name
+     */
+    HdrTimings.Series highResolutionSeries(String name) {
+        for (HdrTimings.Series series : highResolutionSeries()) {
+            if (series.name().equals(name)) {
+                return series;
+            }
+        }
+        return null;
+    }
+
+    List<HdrTimings.Series> highResolutionSeries() {
+        List<HdrTimings.Series> series = new ArrayList<>(4);
+        if (totalTimeSeries != null) {
+            series.add(totalTimeSeries);
+        }
+        if (processingTimeSeries != null) {
+            series.add(processingTimeSeries);
+        }
+        if (serveTimeSeries != null) {
+            series.add(serveTimeSeries);
+        }
+        if (responseSendTimeSeries != null) {
+            series.add(responseSendTimeSeries);
+        }
+        return series;
+    }
+}
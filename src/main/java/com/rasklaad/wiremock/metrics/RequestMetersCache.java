@@ -0,0 +1,113 @@
+package com.rasklaad.wiremock.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Resolved meters keyed by (path, method, status). Lookup of an already seen key doesn't allocate:
+ * meters are grouped by path, see {@link MetersGroup}.
+ * Number of distinct paths is bounded: once the budget is spent, requests for new paths are recorded
+ * under {@link #OVERFLOW_PATH}.
+ * Idle meters can be evicted, a key that comes back afterwards gets new meters.
+ */
+final class RequestMetersCache {
+
+    static final String OVERFLOW_PATH = "__overflow__";
+
+    private final ConcurrentHashMap<String, MetersGroup> paths = new ConcurrentHashMap<>();
+    private final AtomicInteger pathCount = new AtomicInteger();
+    private final MetersGroup.Factory factory;
+    private final int maximumPaths;
+    private final Runnable overflowListener;
+    // last group of overflow path, replaced once evicted
+    private volatile MetersGroup overflowGroup;
+
+    RequestMetersCache(MetersGroup.Factory factory) {
+        this(factory, Integer.MAX_VALUE, () -> { });
+    }
+
+    RequestMetersCache(MetersGroup.Factory factory, int maximumPaths, Runnable overflowListener) {
+        this.factory = factory;
+        this.maximumPaths = maximumPaths;
+        this.overflowListener = overflowListener;
+    }
+
+    RequestMeters get(String path, String method, int status) {
+        while (true) {
+            MetersGroup group = paths.get(path);
+            if (group == null) {
+                group = addPath(path);
+            }
+            RequestMeters meters = group.get(method, status, factory);
+            // null means path was evicted concurrently
+            if (meters != null) {
+                return meters;
+            }
+        }
+    }
+
+    /**
+     * Evicts meters that weren't recorded for at least {@code idleNanos}. {@code onEvict} is called before
+     * anyone can create new meters for the same key, so it's safe to remove evicted meters from registry there.
+     */
+    void evictIdle(long idleNanos, Consumer<RequestMeters> onEvict) {
+        long now = System.nanoTime();
+        for (Map.Entry<String, MetersGroup> entry : paths.entrySet()) {
+            MetersGroup group = entry.getValue();
+            if (group.evictIdle(now, idleNanos, onEvict)) {
+                paths.remove(entry.getKey(), group);
+                if (!OVERFLOW_PATH.equals(entry.getKey())) {
+                    pathCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all paths with their meters, requests recorded afterwards get new ones
+     */
+    void clear(Consumer<RequestMeters> onRemove) {
+        for (Map.Entry<String, MetersGroup> entry : paths.entrySet()) {
+            MetersGroup group = entry.getValue();
+            if (paths.remove(entry.getKey(), group)) {
+                group.retire(onRemove);
+                if (!OVERFLOW_PATH.equals(entry.getKey())) {
+                    pathCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    void rebuild(MetersGroup.Rebuilder rebuilder) {
+        for (MetersGroup group : paths.values()) {
+            group.rebuild(rebuilder);
+        }
+    }
+
+    private MetersGroup addPath(String path) {
+        // once the budget is spent, unknown paths don't touch the map, so a flood of distinct urls isn't inserted
+        // and locked path by path only to end up in overflow
+        if (pathCount.get() < maximumPaths) {
+            MetersGroup group = paths.computeIfAbsent(path, key -> {
+                if (pathCount.incrementAndGet() > maximumPaths) {
+                    pathCount.decrementAndGet();
+                    return null;
+                }
+                return new MetersGroup(key);
+            });
+            if (group != null) {
+                return group;
+            }
+        }
+        overflowListener.run();
+        MetersGroup group = overflowGroup;
+        if (group == null || group.isRetired()) {
+            // overflow series doesn't count against the budget
+            group = paths.computeIfAbsent(OVERFLOW_PATH, MetersGroup::new);
+            overflowGroup = group;
+        }
+        return group;
+    }
+}
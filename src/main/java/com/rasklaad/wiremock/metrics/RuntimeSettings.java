@@ -0,0 +1,60 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Current {@link CollectionSettings} of a server. Settings of servers recording into the same registry are listed
+ * together, so the endpoint scraping that registry can replace them. Holders don't reference their extension,
+ * the extension notices a new snapshot on the next request.
+ */
+final class RuntimeSettings {
+    private static final Map<MeterRegistry, List<RuntimeSettings>> SETTINGS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private volatile CollectionSettings current;
+
+    private RuntimeSettings(CollectionSettings initial) {
+        current = initial;
+    }
+
+    static RuntimeSettings register(MeterRegistry registry, CollectionSettings initial) {
+        RuntimeSettings settings = new RuntimeSettings(initial);
+        SETTINGS.computeIfAbsent(registry, key -> new CopyOnWriteArrayList<>()).add(settings);
+        return settings;
+    }
+
+    /**
+     * @return empty list when no server records into the registry
+     */
+    static List<RuntimeSettings> find(MeterRegistry registry) {
+        List<RuntimeSettings> settings = SETTINGS.get(registry);
+        return settings != null ? settings : Collections.emptyList();
+    }
+
+    void unregister(MeterRegistry registry) {
+        List<RuntimeSettings> settings = SETTINGS.get(registry);
+        if (settings != null) {
+            settings.remove(this);
+        }
+    }
+
+    CollectionSettings current() {
+        return current;
+    }
+
+    /**
+     * Keeps current snapshot when nothing changed, so series aren't recreated for nothing
+     */
+    synchronized CollectionSettings update(Map<String, ?> changes) {
+        CollectionSettings updated = current.with(changes);
+        if (!updated.equals(current)) {
+            current = updated;
+        }
+        return current;
+    }
+}
@@ -0,0 +1,65 @@
+package com.rasklaad.wiremock.metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which events are recorded into distributions. Every thread keeps its own credit and samples
+ * an event each time the credit reaches one, so a fixed ratio of 0.1 records exactly every 10th event of a thread.
+ * Initial credit is random, otherwise short-lived threads would all record their first event.
+ * Adaptive sampler recalculates the ratio once a second from the observed rate to stay around target events/sec.
+ */
+final class Sampler {
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ThreadLocal<double[]> credit = ThreadLocal.withInitial(() -> new double[]{ThreadLocalRandom.current().nextDouble()});
+    // 0 for fixed ratio
+    private final long targetEventsPerSecond;
+    private final LongAdder events = new LongAdder();
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private volatile double ratio;
+
+    private Sampler(double ratio, long targetEventsPerSecond) {
+        this.ratio = ratio;
+        this.targetEventsPerSecond = targetEventsPerSecond;
+    }
+
+    static Sampler fixed(double ratio) {
+        return new Sampler(ratio, 0);
+    }
+
+    static Sampler adaptive(long targetEventsPerSecond) {
+        return new Sampler(1.0, targetEventsPerSecond);
+    }
+
+    boolean sample() {
+        if (targetEventsPerSecond > 0) {
+            events.increment();
+            adjust(System.nanoTime());
+        }
+        double[] threadCredit = credit.get();
+        double value = threadCredit[0] + ratio;
+        if (value >= 1.0) {
+            threadCredit[0] = value - 1.0;
+            return true;
+        }
+        threadCredit[0] = value;
+        return false;
+    }
+
+    void adjust(long now) {
+        long start = windowStart.get();
+        long elapsed = now - start;
+        if (elapsed < WINDOW_NANOS || !windowStart.compareAndSet(start, now)) {
+            return;
+        }
+        double rate = events.sumThenReset() * (double) WINDOW_NANOS / elapsed;
+        ratio = rate <= targetEventsPerSecond ? 1.0 : targetEventsPerSecond / rate;
+    }
+
+    double ratio() {
+        return ratio;
+    }
+}
@@ -0,0 +1,116 @@
+package com.rasklaad.wiremock.metrics;
+
+import com.github.tomakehurst.wiremock.core.Admin;
+import com.github.tomakehurst.wiremock.core.Options;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gauges of server internals: stub count, request journal size and, when {@link JettyMetrics} is configured,
+ * jetty thread pool and connections. Admin is only available to admin tasks, so gauges are bound on first scrape
+ * and read when metrics are scraped, request threads don't do anything for them.
+ * Stub count is listed again only after stubs changed, journal is read by its size without matching requests.
+ */
+final class ServerMetricsBinder {
+    private final Tags tags;
+    private final AtomicLong stubsVersion = new AtomicLong();
+    // null until stubs are counted
+    private volatile StubCount stubCount;
+    private volatile boolean bound;
+
+    ServerMetricsBinder(Tags tags) {
+        this.tags = tags;
+    }
+
+    void bindTo(MeterRegistry registry, Admin admin) {
+        if (bound) {
+            return;
+        }
+        synchronized (this) {
+            if (bound) {
+                return;
+            }
+            bind(registry, admin);
+            bound = true;
+        }
+    }
+
+    private void bind(MeterRegistry registry, Admin admin) {
+        Options options = admin.getOptions();
+        Gauge.builder("wiremock.stubs", admin, this::countStubs)
+            .description("Stub mappings registered")
+            .tags(tags)
+            .register(registry);
+        if (!options.requestJournalDisabled()) {
+            Gauge.builder("wiremock.journal.requests", admin, server -> server.getServeEvents().getServeEvents().size())
+                .description("Serve events kept in request journal")
+                .tags(tags)
+                .register(registry);
+        }
+        if (options.maxRequestJournalEntries().isPresent()) {
+            Gauge.builder("wiremock.journal.requests.max", options, server -> server.maxRequestJournalEntries().orElse(0))
+                .description("Maximum serve events kept in request journal")
+                .tags(tags)
+                .register(registry);
+        }
+        if (options.threadPoolFactory() instanceof JettyMetrics) {
+            JettyMetrics jettyMetrics = (JettyMetrics) options.threadPoolFactory();
+            threadPoolGauge(registry, jettyMetrics, "jetty.threads.busy", "Threads running jobs", "getBusyThreads");
+            threadPoolGauge(registry, jettyMetrics, "jetty.threads.idle", "Threads waiting for jobs", "getIdleThreads");
+            threadPoolGauge(registry, jettyMetrics, "jetty.threads.current", "Threads in the pool", "getThreads");
+            threadPoolGauge(registry, jettyMetrics, "jetty.threads.config.max", "Maximum threads in the pool", "getMaxThreads");
+            threadPoolGauge(registry, jettyMetrics, "jetty.threads.jobs", "Jobs queued waiting for a thread", "getQueueSize");
+        }
+        if (options.networkTrafficListener() instanceof JettyMetrics) {
+            JettyMetrics jettyMetrics = (JettyMetrics) options.networkTrafficListener();
+            Gauge.builder("jetty.connections.current", jettyMetrics, JettyMetrics::currentConnections)
+                .description("Open connections")
+                .tags(tags)
+                .register(registry);
+            FunctionCounter.builder("jetty.connections.opened", jettyMetrics, JettyMetrics::openedConnections)
+                .description("Connections accepted")
+                .tags(tags)
+                .register(registry);
+        }
+    }
+
+    private void threadPoolGauge(MeterRegistry registry, JettyMetrics jettyMetrics, String name, String description, String getter) {
+        Gauge.builder(name, jettyMetrics, metrics -> metrics.threadPoolValue(getter))
+            .description(description)
+            .tags(tags)
+            .register(registry);
+    }
+
+    /**
+     * Called on every stub change, next scrape lists stubs again
+     */
+    void stubsChanged() {
+        stubsVersion.incrementAndGet();
+    }
+
+    private int countStubs(Admin admin) {
+        long version = stubsVersion.get();
+        StubCount counted = stubCount;
+        if (counted != null && counted.version == version) {
+            return counted.count;
+        }
+        // stubs changed while listing leave a stale version behind, so the next scrape lists them again
+        counted = new StubCount(version, admin.listAllStubMappings().getMappings().size());
+        stubCount = counted;
+        return counted.count;
+    }
+
+    private static final class StubCount {
+        private final long version;
+        private final int count;
+
+        private StubCount(long version, int count) {
+            this.version = version;
+            this.count = count;
+        }
+    }
+}
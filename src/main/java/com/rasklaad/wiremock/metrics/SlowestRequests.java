@@ -0,0 +1,202 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Slowest requests of every path (or stub) by total time, to find outliers behind latency spikes without request
+ * journal. Only method, url, status, timings and trace id are kept, in a fixed number of slots per path. Requests faster than
+ * the fastest kept one return after reading a single volatile field, slower ones replace it with compare-and-set.
+ */
+final class SlowestRequests {
+    private static final Map<MeterRegistry, SlowestRequests> REQUESTS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final int size;
+    private final Map<MetersGroup, Ring> rings = new ConcurrentHashMap<>();
+
+    SlowestRequests(int size) {
+        this.size = size;
+    }
+
+    /**
+     * One instance per registry, so the endpoint finds requests of servers it scrapes
+     */
+    static SlowestRequests forRegistry(MeterRegistry registry, int size) {
+        return REQUESTS.computeIfAbsent(registry, key -> new SlowestRequests(size));
+    }
+
+    /**
+     * @return null when slowest requests are not kept for any server using the registry
+     */
+    static SlowestRequests find(MeterRegistry registry) {
+        return REQUESTS.get(registry);
+    }
+
+    Ring ring(MetersGroup group, String instance) {
+        return rings.computeIfAbsent(group, key -> new Ring(key, instance, size));
+    }
+
+    /**
+     * Drops rings of evicted paths and removed stubs
+     */
+    void purge() {
+        rings.keySet().removeIf(MetersGroup::isRetired);
+    }
+
+    List<Map<String, Object>> snapshot() {
+        purge();
+        List<Map<String, Object>> series = new ArrayList<>();
+        for (Ring ring : rings.values()) {
+            Map<String, Object> snapshot = ring.snapshot();
+            if (snapshot != null) {
+                series.add(snapshot);
+            }
+        }
+        return series;
+    }
+
+    static final class Ring {
+        private final MetersGroup group;
+        private final String instance;
+        private final AtomicReferenceArray<SlowRequest> requests;
+        // total time of the fastest kept request, requests not slower than that are skipped; -1 until slots are filled.
+        // Kept requests only get slower, so a stale value is lower than the actual one and skips nothing it shouldn't
+        private volatile int threshold = -1;
+
+        private Ring(MetersGroup group, String instance, int size) {
+            this.group = group;
+            this.instance = instance;
+            requests = new AtomicReferenceArray<>(size);
+        }
+
+        void offer(RequestEvent event) {
+            if (event.totalTime <= threshold) {
+                return;
+            }
+            // built only to be kept, trace id is built with it
+            SlowRequest request = null;
+            // a lost race means another request replaced the fastest one, look for the fastest again
+            for (int attempt = 0; attempt < requests.length(); attempt++) {
+                int fastestIndex = -1;
+                SlowRequest fastest = null;
+                for (int i = 0; i < requests.length(); i++) {
+                    SlowRequest candidate = requests.get(i);
+                    if (candidate == null) {
+                        fastestIndex = i;
+                        fastest = null;
+                        break;
+                    }
+                    if (fastest == null || candidate.totalTime < fastest.totalTime) {
+                        fastestIndex = i;
+                        fastest = candidate;
+                    }
+                }
+                if (fastest != null && fastest.totalTime >= event.totalTime) {
+                    updateThreshold();
+                    return;
+                }
+                if (request == null) {
+                    request = new SlowRequest(event);
+                }
+                if (requests.compareAndSet(fastestIndex, fastest, request)) {
+                    updateThreshold();
+                    return;
+                }
+            }
+        }
+
+        private void updateThreshold() {
+            int fastest = Integer.MAX_VALUE;
+            for (int i = 0; i < requests.length(); i++) {
+                SlowRequest request = requests.get(i);
+                if (request == null) {
+                    return;
+                }
+                fastest = Math.min(fastest, request.totalTime);
+            }
+            threshold = fastest;
+        }
+
+        /**
+         * @return null when nothing was recorded
+         */
+        Map<String, Object> snapshot() {
+            List<SlowRequest> kept = new ArrayList<>(requests.length());
+            for (int i = 0; i < requests.length(); i++) {
+                SlowRequest request = requests.get(i);
+                if (request != null) {
+                    kept.add(request);
+                }
+            }
+            if (kept.isEmpty()) {
+                return null;
+            }
+            kept.sort(Comparator.comparingInt((SlowRequest request) -> request.totalTime).reversed());
+            List<Map<String, Object>> slowest = new ArrayList<>(kept.size());
+            for (SlowRequest request : kept) {
+                slowest.add(request.toMap());
+            }
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("path", group.path());
+            if (group.stub() != null) {
+                snapshot.put("stub", group.stub());
+            }
+            if (instance != null) {
+                snapshot.put("instance", instance);
+            }
+            snapshot.put("requests", slowest);
+            return snapshot;
+        }
+    }
+
+    private static final class SlowRequest {
+        private final String method;
+        private final String url;
+        private final int status;
+        // null unless exemplars are enabled
+        private final String traceId;
+        private final long loggedDate;
+        private final int totalTime;
+        private final int processTime;
+        private final int serveTime;
+        private final int responseSendTime;
+
+        private SlowRequest(RequestEvent event) {
+            method = event.method;
+            url = event.url;
+            status = event.status;
+            traceId = event.traceId();
+            loggedDate = event.loggedDate;
+            totalTime = event.totalTime;
+            processTime = event.processTime;
+            serveTime = event.serveTime;
+            responseSendTime = event.responseSendTime;
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> request = new LinkedHashMap<>();
+            request.put("method", method);
+            request.put("url", url);
+            request.put("status", status);
+            if (traceId != null) {
+                request.put("traceId", traceId);
+            }
+            request.put("loggedDate", Instant.ofEpochMilli(loggedDate).toString());
+            request.put("totalTime", totalTime);
+            request.put("processTime", processTime);
+            request.put("serveTime", serveTime);
+            request.put("responseSendTime", responseSendTime);
+            return request;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Stubs with the highest mean match time, {@code wiremock_stub_match_slowest_seconds} and their mean position
+ * in matching order, {@code wiremock_stub_match_slowest_position}. Label set changes as stubs enter and leave
+ * the top, so samples are built on scrape straight into prometheus client registry instead of micrometer gauges.
+ */
+final class SlowestStubs extends Collector {
+    private static final Map<CollectorRegistry, SlowestStubs> COLLECTORS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    // weak, stub matching of a server stopped without stopping its extensions must not stay reachable from registry
+    private final Set<StubMatching> sources = Collections.newSetFromMap(new WeakHashMap<>());
+    private final int limit;
+
+    private SlowestStubs(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * One collector per registry, servers sharing a registry must not export the same families twice
+     */
+    static SlowestStubs forRegistry(CollectorRegistry registry, int limit) {
+        synchronized (COLLECTORS) {
+            return COLLECTORS.computeIfAbsent(registry, key -> new SlowestStubs(limit).register(key));
+        }
+    }
+
+    void add(StubMatching source) {
+        synchronized (sources) {
+            sources.add(source);
+        }
+    }
+
+    void remove(StubMatching source) {
+        synchronized (sources) {
+            sources.remove(source);
+        }
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        Comparator<StubMatching.StubStats> byMatchTime = Comparator.comparingDouble(StubMatching.StubStats::meanMatchSeconds);
+        // keeps the fastest of the current top on its head
+        PriorityQueue<StubMatching.StubStats> slowest = new PriorityQueue<>(limit + 1, byMatchTime);
+        List<StubMatching> current;
+        synchronized (sources) {
+            current = new ArrayList<>(sources);
+        }
+        for (StubMatching source : current) {
+            for (StubMatching.StubStats stats : source.stubStats()) {
+                if (stats.requests() == 0) {
+                    continue;
+                }
+                slowest.add(stats);
+                if (slowest.size() > limit) {
+                    slowest.poll();
+                }
+            }
+        }
+        List<StubMatching.StubStats> top = new ArrayList<>(slowest);
+        top.sort(byMatchTime.reversed());
+
+        List<MetricFamilySamples.Sample> seconds = new ArrayList<>(top.size());
+        List<MetricFamilySamples.Sample> positions = new ArrayList<>(top.size());
+        for (StubMatching.StubStats stats : top) {
+            List<String> labelNames = stats.instance == null
+                ? Arrays.asList("stub", "path")
+                : Arrays.asList("stub", "path", "instance");
+            List<String> labelValues = stats.instance == null
+                ? Arrays.asList(stats.stub, stats.path)
+                : Arrays.asList(stats.stub, stats.path, stats.instance);
+            seconds.add(new MetricFamilySamples.Sample("wiremock_stub_match_slowest_seconds", labelNames, labelValues, stats.meanMatchSeconds()));
+            positions.add(new MetricFamilySamples.Sample("wiremock_stub_match_slowest_position", labelNames, labelValues, stats.meanPosition()));
+        }
+        List<MetricFamilySamples> families = new ArrayList<>(2);
+        families.add(new MetricFamilySamples("wiremock_stub_match_slowest_seconds", Type.GAUGE,
+            "Mean match time of requests served by the slowest matching stubs", seconds));
+        families.add(new MetricFamilySamples("wiremock_stub_match_slowest_position", Type.GAUGE,
+            "Mean position in matching order of the slowest matching stubs", positions));
+        return families;
+    }
+}
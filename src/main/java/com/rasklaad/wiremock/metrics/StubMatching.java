@@ -0,0 +1,237 @@
+package com.rasklaad.wiremock.metrics;
+
+import com.github.tomakehurst.wiremock.stubbing.StubMapping;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cost of finding the stub for a request. Match time is measured between wiremock's before and after match phases
+ * on the request thread, respond time from the after match phase until the response is sent. Wiremock's in-memory store evaluates stubs one by one, by priority and then newest first,
+ * until one matches in the current scenario state. Position of the matched stub in that order, or number of stubs when
+ * nothing matched, is the number of stubs evaluated then. Stores that index stubs may evaluate fewer, so the metric
+ * is named after the position.
+ * Stubs are mirrored from lifecycle callbacks and positions are computed on a background thread after they change,
+ * requests served before that don't record a position.
+ */
+final class StubMatching {
+    // start of matching, match time and end of matching of the current request, match time is -1 when not measured
+    private static final ThreadLocal<long[]> STOPWATCH = ThreadLocal.withInitial(() -> new long[]{0, -1, 0});
+    // same order as wiremock's in-memory store
+    private static final Comparator<StubMapping> MATCHING_ORDER = ((Comparator<StubMapping>) StubMapping::comparePriorityWith)
+        .thenComparing(Comparator.comparingLong(StubMapping::getInsertionIndex).reversed());
+
+    private final Timer matchedTime;
+    private final Timer notMatchedTime;
+    private final Timer afterMatchTime;
+    private final DistributionSummary stubPosition;
+    private final String instance;
+    private final Map<UUID, StubStats> stubs = new ConcurrentHashMap<>();
+    private final Map<UUID, StubMapping> mappings = new ConcurrentHashMap<>();
+    private final AtomicLong stubsVersion = new AtomicLong();
+    private final AtomicBoolean positioning = new AtomicBoolean();
+    // null until positions are computed for the first time
+    private volatile Positions positions;
+
+    StubMatching(MeterRegistry registry, Tags instanceTags, String instance) {
+        this.instance = instance;
+        matchedTime = matchTimer(registry, instanceTags.and("matched", "true"));
+        notMatchedTime = matchTimer(registry, instanceTags.and("matched", "false"));
+        afterMatchTime = Timer.builder("wiremock.stub.respond")
+            .description("Time from finding the stub until the response is sent: transformers, rendering, delays and writing")
+            .tags(instanceTags)
+            .register(registry);
+        stubPosition = DistributionSummary.builder("wiremock.stub.match.position")
+            .description("Position of the matched stub in matching order, number of stubs when nothing matched")
+            .tags(instanceTags)
+            .register(registry);
+    }
+
+    private static Timer matchTimer(MeterRegistry registry, Tags tags) {
+        return Timer.builder("wiremock.stub.match")
+            .description("Time spent finding the stub for a request")
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(1)))
+            .maximumExpectedValue(Duration.ofSeconds(1))
+            .tags(tags)
+            .register(registry);
+    }
+
+    static void beforeMatch() {
+        long[] stopwatch = STOPWATCH.get();
+        stopwatch[0] = System.nanoTime();
+        stopwatch[1] = -1;
+    }
+
+    static void afterMatch() {
+        long[] stopwatch = STOPWATCH.get();
+        stopwatch[2] = System.nanoTime();
+        stopwatch[1] = stopwatch[2] - stopwatch[0];
+    }
+
+    /**
+     * @return match time of the request served by current thread, -1 when it wasn't measured
+     */
+    static long takeMatchNanos() {
+        long[] stopwatch = STOPWATCH.get();
+        long matchNanos = stopwatch[1];
+        stopwatch[1] = -1;
+        return matchNanos;
+    }
+
+    /**
+     * Call after the response is sent and before {@link #takeMatchNanos()}
+     * @return time since the request served by current thread was matched, -1 when matching wasn't measured
+     */
+    static long respondNanos() {
+        long[] stopwatch = STOPWATCH.get();
+        return stopwatch[1] < 0 ? -1 : System.nanoTime() - stopwatch[2];
+    }
+
+    void record(RequestEvent event) {
+        if (event.matchNanos < 0) {
+            return;
+        }
+        (event.wasMatched ? matchedTime : notMatchedTime).record(event.matchNanos, TimeUnit.NANOSECONDS);
+        afterMatchTime.record(event.respondNanos, TimeUnit.NANOSECONDS);
+        int position = position(event.stubMapping);
+        if (position > 0) {
+            stubPosition.record(position);
+        }
+        if (event.stubMapping != null) {
+            stubs.computeIfAbsent(event.stubMapping.getId(), id -> new StubStats(event.stubMapping, instance))
+                .add(event.matchNanos, position);
+        }
+    }
+
+    /**
+     * @return 0 when positions of current stubs aren't computed yet
+     */
+    private int position(StubMapping stub) {
+        Positions current = positions;
+        if (current == null || current.version != stubsVersion.get()) {
+            return 0;
+        }
+        if (stub == null) {
+            return current.byId.size();
+        }
+        Integer position = current.byId.get(stub.getId());
+        return position == null ? 0 : position + 1;
+    }
+
+    void stubCreated(StubMapping stub) {
+        mappings.put(stub.getId(), stub);
+        stubsChanged();
+    }
+
+    void stubEdited(StubMapping oldStub, StubMapping newStub) {
+        stubs.remove(oldStub.getId());
+        mappings.remove(oldStub.getId());
+        mappings.put(newStub.getId(), newStub);
+        stubsChanged();
+    }
+
+    void stubRemoved(StubMapping stub) {
+        stubs.remove(stub.getId());
+        mappings.remove(stub.getId());
+        stubsChanged();
+    }
+
+    void stubsReset() {
+        stubs.clear();
+        mappings.clear();
+        stubsChanged();
+    }
+
+    /**
+     * A burst of changes, e.g. stubs imported one by one, is positioned once it's over
+     */
+    private void stubsChanged() {
+        stubsVersion.incrementAndGet();
+        if (positioning.compareAndSet(false, true)) {
+            BackgroundTasks.execute(this, StubMatching::computePositions);
+        }
+    }
+
+    private void computePositions() {
+        // cleared before reading, so a change from now on schedules another run
+        positioning.set(false);
+        long version = stubsVersion.get();
+        List<StubMapping> ordered = new ArrayList<>(mappings.values());
+        ordered.sort(MATCHING_ORDER);
+        Map<UUID, Integer> byId = new HashMap<>(ordered.size() * 2);
+        for (int i = 0; i < ordered.size(); i++) {
+            byId.put(ordered.get(i).getId(), i);
+        }
+        // mirror could change after version was read, positions are used only if it didn't
+        positions = new Positions(version, byId);
+    }
+
+    Iterable<StubStats> stubStats() {
+        return stubs.values();
+    }
+
+    static final class StubStats {
+        final String stub;
+        final String path;
+        final String instance;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder matchNanos = new LongAdder();
+        private final LongAdder positions = new LongAdder();
+        // requests served while positions were known
+        private final LongAdder positioned = new LongAdder();
+
+        private StubStats(StubMapping stub, String instance) {
+            this.stub = stub.getName() != null ? stub.getName() : stub.getId().toString();
+            this.path = stub.getRequest().getUrlMatcher().getExpected();
+            this.instance = instance;
+        }
+
+        private void add(long nanos, int position) {
+            requests.increment();
+            matchNanos.add(nanos);
+            if (position > 0) {
+                positions.add(position);
+                positioned.increment();
+            }
+        }
+
+        long requests() {
+            return requests.sum();
+        }
+
+        double meanMatchSeconds() {
+            long count = requests.sum();
+            return count == 0 ? 0 : matchNanos.sum() / (double) count / TimeUnit.SECONDS.toNanos(1);
+        }
+
+        double meanPosition() {
+            long count = positioned.sum();
+            return count == 0 ? 0 : positions.sum() / (double) count;
+        }
+    }
+
+    private static final class Positions {
+        private final long version;
+        private final Map<UUID, Integer> byId;
+
+        private Positions(long version, Map<UUID, Integer> byId) {
+            this.version = version;
+            this.byId = byId;
+        }
+    }
+}
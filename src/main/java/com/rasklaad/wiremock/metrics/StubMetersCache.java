@@ -0,0 +1,81 @@
+package com.rasklaad.wiremock.metrics;
+
+import com.github.tomakehurst.wiremock.stubbing.StubMapping;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Meters keyed by stub mapping id. Groups are created when stubs are added, so recording a request
+ * is a single lookup by id, and dropped together with their meters when stubs are removed.
+ */
+final class StubMetersCache {
+    private final ConcurrentHashMap<UUID, MetersGroup> stubs = new ConcurrentHashMap<>();
+    private final MetersGroup.Factory factory;
+    private final Function<StubMapping, MetersGroup> groupFactory;
+
+    StubMetersCache(MetersGroup.Factory factory, Function<StubMapping, MetersGroup> groupFactory) {
+        this.factory = factory;
+        this.groupFactory = groupFactory;
+    }
+
+    void add(StubMapping stub, Consumer<RequestMeters> onRemove) {
+        MetersGroup previous = stubs.put(stub.getId(), groupFactory.apply(stub));
+        if (previous != null) {
+            previous.retire(onRemove);
+        }
+    }
+
+    void remove(UUID id, Consumer<RequestMeters> onRemove) {
+        MetersGroup removed = stubs.remove(id);
+        if (removed != null) {
+            removed.retire(onRemove);
+        }
+    }
+
+    void clear(Consumer<RequestMeters> onRemove) {
+        for (UUID id : stubs.keySet()) {
+            remove(id, onRemove);
+        }
+    }
+
+    void rebuild(MetersGroup.Rebuilder rebuilder) {
+        for (MetersGroup group : stubs.values()) {
+            group.rebuild(rebuilder);
+        }
+    }
+
+    /**
+     * Stubs loaded before the extension was created, or evicted as idle, get their group on first request.
+     * A request racing with removal of its stub can bring the group back, idle eviction cleans it up then.
+     */
+    RequestMeters get(StubMapping stub, String method, int status) {
+        while (true) {
+            MetersGroup group = stubs.get(stub.getId());
+            if (group == null) {
+                group = stubs.computeIfAbsent(stub.getId(), id -> groupFactory.apply(stub));
+            }
+            RequestMeters meters = group.get(method, status, factory);
+            // null means group was removed or evicted concurrently
+            if (meters != null) {
+                return meters;
+            }
+        }
+    }
+
+    void evictIdle(long idleNanos, Consumer<RequestMeters> onEvict) {
+        long now = System.nanoTime();
+        for (Map.Entry<UUID, MetersGroup> entry : stubs.entrySet()) {
+            if (entry.getValue().evictIdle(now, idleNanos, onEvict)) {
+                stubs.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    int size() {
+        return stubs.size();
+    }
+}
@@ -0,0 +1,133 @@
+package com.rasklaad.wiremock.metrics;
+
+import com.github.tomakehurst.wiremock.common.Json;
+import com.github.tomakehurst.wiremock.common.Timing;
+import com.github.tomakehurst.wiremock.http.HttpHeaders;
+import com.github.tomakehurst.wiremock.http.ImmutableRequest;
+import com.github.tomakehurst.wiremock.http.LoggedResponse;
+import com.github.tomakehurst.wiremock.http.RequestMethod;
+import com.github.tomakehurst.wiremock.http.ResponseDefinition;
+import com.github.tomakehurst.wiremock.stubbing.ServeEvent;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class AsyncRecorderTest {
+
+    private static ServeEvent serveEvent(int totalTime) {
+        LoggedRequest request = LoggedRequest.createFrom(ImmutableRequest.create()
+            .withAbsoluteUrl("http://localhost:8080/test")
+            .withMethod(RequestMethod.GET)
+            .build());
+        Timing timing = Json.read("{\"addedDelay\":" + (totalTime - 2) + ",\"processTime\":1,\"responseSendTime\":1}", Timing.class);
+        LoggedResponse response = new LoggedResponse(200, HttpHeaders.noHeaders(), null, null, null);
+        return new ServeEvent(UUID.randomUUID(), request, null, ResponseDefinition.notConfigured(), response, false, timing, new ConcurrentLinkedQueue<>());
+    }
+
+    @Test
+    void shouldDeliverEveryEventWhenBlocking() throws InterruptedException {
+        LongAdder delivered = new LongAdder();
+        LongAdder totalTimeSum = new LongAdder();
+        AsyncRecorder recorder = new AsyncRecorder(8, 3, BackPressure.BLOCK, event -> {
+            delivered.increment();
+            totalTimeSum.add(event.totalTime);
+        });
+        recorder.start();
+
+        ServeEvent event = serveEvent(3);
+        int producers = 4;
+        int eventsPerProducer = 10_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < producers; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < eventsPerProducer; j++) {
+                    recorder.publish(event, -1, -1, false, null);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (delivered.sum() < producers * eventsPerProducer && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+        }
+        recorder.stop();
+
+        Assertions.assertThat(delivered.sum()).isEqualTo(producers * eventsPerProducer);
+        Assertions.assertThat(totalTimeSum.sum()).isEqualTo(3L * producers * eventsPerProducer);
+        Assertions.assertThat(recorder.droppedEvents()).isZero();
+        Assertions.assertThat(recorder.queueDepth()).isZero();
+    }
+
+    @Test
+    void shouldDropEventsWhenBufferIsFull() {
+        LongAdder delivered = new LongAdder();
+        AsyncRecorder recorder = new AsyncRecorder(4, 1, BackPressure.DROP, event -> delivered.increment());
+
+        // consumers are not started, so buffer is never drained
+        ServeEvent event = serveEvent(1);
+        for (int i = 0; i < 10; i++) {
+            recorder.publish(event, -1, -1, false, null);
+        }
+
+        Assertions.assertThat(recorder.queueDepth()).isEqualTo(4);
+        Assertions.assertThat(recorder.droppedEvents()).isEqualTo(6);
+        Assertions.assertThat(delivered.sum()).isZero();
+    }
+
+    @Test
+    void shouldPublishSlotWhenServeEventCantBeCopied() throws InterruptedException {
+        LongAdder delivered = new LongAdder();
+        AsyncRecorder recorder = new AsyncRecorder(4, 1, BackPressure.BLOCK, event -> delivered.increment());
+        recorder.start();
+        LoggedRequest request = LoggedRequest.createFrom(ImmutableRequest.create()
+            .withAbsoluteUrl("http://localhost:8080/test")
+            .withMethod(RequestMethod.GET)
+            .build());
+        // no response and timing, copying fails after the slot is claimed
+        ServeEvent broken = new ServeEvent(UUID.randomUUID(), request, null, ResponseDefinition.notConfigured(), null, false, null,
+            new ConcurrentLinkedQueue<>());
+
+        recorder.publish(broken, -1, -1, false, null);
+        recorder.publish(serveEvent(1), -1, -1, false, null);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (delivered.sum() < 1 && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+        }
+        recorder.stop();
+
+        Assertions.assertThat(delivered.sum()).isEqualTo(1);
+        Assertions.assertThat(recorder.droppedEvents()).isEqualTo(1);
+        Assertions.assertThat(recorder.queueDepth()).isZero();
+    }
+
+    @Test
+    void shouldStopConsumersWhenRecorderIsCollected() throws InterruptedException {
+        Set<Thread> before = Thread.getAllStackTraces().keySet();
+        new AsyncRecorder(8, 2, BackPressure.DROP, event -> { }).start();
+        Set<Thread> consumers = new HashSet<>(Thread.getAllStackTraces().keySet());
+        consumers.removeAll(before);
+        Assertions.assertThat(consumers).hasSize(2);
+
+        // recorder wasn't stopped, like one of a server stopped without shutting it down through admin api
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (consumers.stream().anyMatch(Thread::isAlive) && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(10L);
+        }
+
+        Assertions.assertThat(consumers).noneMatch(Thread::isAlive);
+    }
+}
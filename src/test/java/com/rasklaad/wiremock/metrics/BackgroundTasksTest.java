@@ -0,0 +1,52 @@
+package com.rasklaad.wiremock.metrics;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class BackgroundTasksTest {
+
+    @Test
+    void shouldRunTaskWhileOwnerIsReachable() throws InterruptedException {
+        LongAdder owner = new LongAdder();
+        Future<?> task = BackgroundTasks.scheduleWithFixedDelay(owner, LongAdder::increment, 1);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (owner.sum() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(1L);
+        }
+        task.cancel(false);
+
+        Assertions.assertThat(owner.sum()).isGreaterThanOrEqualTo(3);
+    }
+
+    @Test
+    void shouldRunOneOffTaskOnce() throws InterruptedException {
+        LongAdder owner = new LongAdder();
+        BackgroundTasks.execute(owner, LongAdder::increment);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (owner.sum() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1L);
+        }
+        Thread.sleep(50L);
+
+        Assertions.assertThat(owner.sum()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldCancelTaskOnceOwnerIsCollected() throws InterruptedException {
+        Future<?> task = BackgroundTasks.scheduleWithFixedDelay(new LongAdder(), LongAdder::increment, 1);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!task.isCancelled() && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(10L);
+        }
+
+        Assertions.assertThat(task.isCancelled()).isTrue();
+    }
+}
@@ -0,0 +1,121 @@
+package com.rasklaad.wiremock.metrics;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class ExpositionMergerTest {
+
+    private static String merge(String... expositions) throws IOException {
+        ExpositionMerger merger = new ExpositionMerger();
+        for (String exposition : expositions) {
+            merger.add(exposition);
+        }
+        StringWriter writer = new StringWriter();
+        merger.write(writer);
+        return writer.toString();
+    }
+
+    @Test
+    void shouldAddUpCountersAndHistograms() throws IOException {
+        String first = "# HELP requests_total Requests\n"
+            + "# TYPE requests_total counter\n"
+            + "requests_total{path=\"/a\",} 2.0\n"
+            + "# HELP time_ms Time\n"
+            + "# TYPE time_ms histogram\n"
+            + "time_ms_bucket{le=\"10.0\",} 1.0\n"
+            + "time_ms_bucket{le=\"+Inf\",} 2.0\n"
+            + "time_ms_count 2.0\n"
+            + "time_ms_sum 15.0\n";
+        String second = "# HELP requests_total Requests\n"
+            + "# TYPE requests_total counter\n"
+            + "requests_total{path=\"/a\",} 3.0\n"
+            + "requests_total{path=\"/b\",} 1.0\n"
+            + "# HELP time_ms Time\n"
+            + "# TYPE time_ms histogram\n"
+            + "time_ms_bucket{le=\"10.0\",} 0.0\n"
+            + "time_ms_bucket{le=\"+Inf\",} 1.0\n"
+            + "time_ms_count 1.0\n"
+            + "time_ms_sum 20.0\n";
+
+        Assertions.assertThat(merge(first, second)).isEqualTo("# HELP requests_total Requests\n"
+            + "# TYPE requests_total counter\n"
+            + "requests_total{path=\"/a\",} 5.0\n"
+            + "requests_total{path=\"/b\",} 1.0\n"
+            + "# HELP time_ms Time\n"
+            + "# TYPE time_ms histogram\n"
+            + "time_ms_bucket{le=\"10.0\",} 1.0\n"
+            + "time_ms_bucket{le=\"+Inf\",} 3.0\n"
+            + "time_ms_count 3.0\n"
+            + "time_ms_sum 35.0\n");
+    }
+
+    @Test
+    void shouldKeepHighestMaximumAndQuantile() throws IOException {
+        String first = "# TYPE time_ms_max gauge\n"
+            + "time_ms_max 7.0\n"
+            + "# TYPE hdr_ms summary\n"
+            + "hdr_ms{quantile=\"0.99\",} 12.0\n"
+            + "hdr_ms_count 4.0\n";
+        String second = "# TYPE time_ms_max gauge\n"
+            + "time_ms_max 3.0\n"
+            + "# TYPE hdr_ms summary\n"
+            + "hdr_ms{quantile=\"0.99\",} 30.0\n"
+            + "hdr_ms_count 1.0\n";
+
+        Assertions.assertThat(merge(first, second)).isEqualTo("# TYPE time_ms_max gauge\n"
+            + "time_ms_max 7.0\n"
+            + "# TYPE hdr_ms summary\n"
+            + "hdr_ms{quantile=\"0.99\",} 30.0\n"
+            + "hdr_ms_count 5.0\n");
+    }
+
+    @Test
+    void shouldPassGaugesThroughPerInstance() throws IOException {
+        String gauges = "# TYPE heap_bytes gauge\n"
+            + "heap_bytes{area=\"heap\",} 100.0\n"
+            + "# TYPE stubs gauge\n"
+            + "stubs 3.0\n"
+            + "# TYPE tagged gauge\n"
+            + "tagged{instance=\"payments\",} 1.0\n";
+        ExpositionMerger merger = new ExpositionMerger();
+        merger.add("local", gauges);
+        merger.add("http://peer", gauges.replace("100.0", "200.0"));
+        StringWriter writer = new StringWriter();
+        merger.write(writer);
+
+        Assertions.assertThat(writer.toString()).isEqualTo("# TYPE heap_bytes gauge\n"
+            + "heap_bytes{instance=\"local\",area=\"heap\",} 100.0\n"
+            + "heap_bytes{instance=\"http://peer\",area=\"heap\",} 200.0\n"
+            + "# TYPE stubs gauge\n"
+            + "stubs{instance=\"local\",} 3.0\n"
+            + "stubs{instance=\"http://peer\",} 3.0\n"
+            + "# TYPE tagged gauge\n"
+            + "tagged{instance=\"local\",exported_instance=\"payments\",} 1.0\n"
+            + "tagged{instance=\"http://peer\",exported_instance=\"payments\",} 1.0\n");
+    }
+
+    @Test
+    void shouldNotTakeSamplesOfFamilyWithLongerName() throws IOException {
+        // untyped family without headers, it isn't added up
+        String exposition = "# TYPE wiremock_request histogram\n"
+            + "wiremock_request_count 1.0\n"
+            + "wiremock_requests_total 5.0\n";
+
+        Assertions.assertThat(merge(exposition, exposition)).isEqualTo("# TYPE wiremock_request histogram\n"
+            + "wiremock_request_count 2.0\n"
+            + "wiremock_requests_total 5.0\n");
+    }
+
+    @Test
+    void shouldKeepLabelValuesWithSpecialCharacters() throws IOException {
+        String exposition = "# TYPE requests_total counter\n"
+            + "requests_total{path=\"/a b}\\\"c\",} 1.0 1700000000000\n"
+            + "requests_total{path=\"/a b}\\\"c\",} NaN\n";
+
+        Assertions.assertThat(merge(exposition, exposition)).isEqualTo("# TYPE requests_total counter\n"
+            + "requests_total{path=\"/a b}\\\"c\",} 2.0\n");
+    }
+}
@@ -0,0 +1,141 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+public class HdrTimingsTest {
+
+    private static Map<String, Double> samples(HdrTimings timings) {
+        return timings.collect().stream()
+            .flatMap(family -> family.samples.stream())
+            .collect(Collectors.toMap(
+                sample -> sample.name + sample.labelValues,
+                sample -> sample.value
+            ));
+    }
+
+    @Test
+    void shouldExportExactQuantilesCountSumAndBuckets() {
+        HdrTimings timings = HdrTimings.forRegistry(new CollectorRegistry(), new double[]{1, 10});
+        HdrTimings.Series series = timings.create("test_hdr_ms", "test", Collections.singletonList("path"), Collections.singletonList("/test"));
+
+        for (int value = 1; value <= 1000; value++) {
+            series.record(value % 100);
+        }
+
+        Map<String, Double> samples = samples(timings);
+        Assertions.assertThat(samples).containsEntry("test_hdr_ms[/test, 0.5]", 49.0)
+            .containsEntry("test_hdr_ms[/test, 0.99]", 98.0);
+        Assertions.assertThat(samples).containsEntry("test_hdr_ms_count[/test]", 1000.0)
+            .containsEntry("test_hdr_ms_sum[/test]", 49500.0)
+            .containsEntry("test_hdr_ms_buckets_bucket[/test, 1.0]", 20.0)
+            .containsEntry("test_hdr_ms_buckets_bucket[/test, 10.0]", 110.0)
+            .containsEntry("test_hdr_ms_buckets_bucket[/test, +Inf]", 1000.0);
+    }
+
+    @Test
+    void shouldMergeValuesRecordedByManyThreads() throws InterruptedException {
+        HdrTimings timings = HdrTimings.forRegistry(new CollectorRegistry(), new double[0]);
+        HdrTimings.Series series = timings.create("test_hdr_ms", "test", Collections.emptyList(), Collections.emptyList());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        for (int thread = 0; thread < 8; thread++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    series.record(5);
+                }
+            });
+        }
+        executor.shutdown();
+        Assertions.assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+        Map<String, Double> samples = samples(timings);
+        Assertions.assertThat(samples).containsEntry("test_hdr_ms_count[]", 80_000.0);
+        Assertions.assertThat(samples).containsEntry("test_hdr_ms[0.999]", 5.0);
+    }
+
+    @Test
+    void shouldCountValuesAgainstFractionalAndLargeBuckets() {
+        HdrTimings timings = HdrTimings.forRegistry(new CollectorRegistry(), new double[]{0.5, 1.5, 1000});
+        HdrTimings.Series series = timings.create("test_hdr_ms", "test", Collections.emptyList(), Collections.emptyList());
+
+        series.record(0);
+        series.record(1);
+        series.record(2);
+        series.record(1000);
+        series.record(1005);
+
+        Map<String, Double> samples = samples(timings);
+        Assertions.assertThat(samples).containsEntry("test_hdr_ms_buckets_bucket[0.5]", 1.0)
+            .containsEntry("test_hdr_ms_buckets_bucket[1.5]", 2.0)
+            .containsEntry("test_hdr_ms_buckets_bucket[1000.0]", 4.0)
+            .containsEntry("test_hdr_ms_buckets_bucket[+Inf]", 5.0);
+    }
+
+    @Test
+    void shouldNotCountValuesJustAboveBucketBound() {
+        HdrTimings timings = HdrTimings.forRegistry(new CollectorRegistry(), new double[]{300, 1000});
+        HdrTimings.Series series = timings.create("test_hdr_ms", "test", Collections.emptyList(), Collections.emptyList());
+
+        series.record(300);
+        series.record(301);
+        series.record(302);
+        series.record(1000);
+        series.record(1001);
+
+        Map<String, Double> samples = samples(timings);
+        Assertions.assertThat(samples).containsEntry("test_hdr_ms_buckets_bucket[300.0]", 1.0)
+            .containsEntry("test_hdr_ms_buckets_bucket[1000.0]", 4.0)
+            .containsEntry("test_hdr_ms_buckets_bucket[+Inf]", 5.0);
+    }
+
+    @Test
+    void shouldExportExactQuantilesOfWholeMilliseconds() {
+        HdrTimings timings = HdrTimings.forRegistry(new CollectorRegistry(), new double[0]);
+        HdrTimings.Series fast = timings.create("fast_hdr_ms", "test", Collections.emptyList(), Collections.emptyList());
+        HdrTimings.Series slow = timings.create("slow_hdr_ms", "test", Collections.emptyList(), Collections.emptyList());
+
+        fast.record(5);
+        for (int i = 0; i < 100; i++) {
+            slow.record(255);
+        }
+
+        Map<String, Double> samples = samples(timings);
+        Assertions.assertThat(samples).containsEntry("fast_hdr_ms[0.5]", 5.0)
+            .containsEntry("fast_hdr_ms[0.999]", 5.0)
+            .containsEntry("slow_hdr_ms[0.5]", 255.0)
+            .containsEntry("slow_hdr_ms[0.99]", 255.0);
+    }
+
+    @Test
+    void shouldNotExportRemovedSeries() {
+        HdrTimings timings = HdrTimings.forRegistry(new CollectorRegistry(), new double[0]);
+        HdrTimings.Series series = timings.create("test_hdr_ms", "test", Collections.singletonList("path"), Collections.singletonList("/test"));
+        series.record(1);
+
+        timings.remove(series);
+
+        List<Collector.MetricFamilySamples.Sample> samples = timings.collect().stream()
+            .flatMap(family -> family.samples.stream())
+            .collect(Collectors.toList());
+        Assertions.assertThat(samples).isEmpty();
+    }
+
+    @Test
+    void shouldShareCollectorBetweenServersOfRegistry() {
+        CollectorRegistry registry = new CollectorRegistry();
+
+        Assertions.assertThat(HdrTimings.forRegistry(registry, new double[0]))
+            .isSameAs(HdrTimings.forRegistry(registry, new double[]{1}));
+    }
+}
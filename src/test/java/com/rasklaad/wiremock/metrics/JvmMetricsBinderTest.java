@@ -0,0 +1,77 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class JvmMetricsBinderTest {
+
+    @Test
+    void shouldBindOnlyWhenScraped() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        JvmMetricsBinder binder = JvmMetricsBinder.acquire(registry, JvmMetrics.ALL);
+
+        Assertions.assertThat(registry.getMeters()).isEmpty();
+        JvmMetricsBinder.bindTo(registry);
+
+        Assertions.assertThat(binder.isBound()).isTrue();
+        Assertions.assertThat(registry.find("jvm.memory.used").gauges()).isNotEmpty();
+        Assertions.assertThat(registry.find("jvm.classes.loaded").gauge()).isNotNull();
+        binder.release(registry);
+    }
+
+    @Test
+    void shouldBindMinimalSetWithoutGcMetrics() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        JvmMetricsBinder binder = JvmMetricsBinder.acquire(registry, JvmMetrics.MINIMAL);
+
+        JvmMetricsBinder.bindTo(registry);
+
+        Assertions.assertThat(registry.find("jvm.memory.used").gauges()).isNotEmpty();
+        Assertions.assertThat(registry.find("process.uptime").timeGauge()).isNotNull();
+        Assertions.assertThat(registry.find("jvm.classes.loaded").gauge()).isNull();
+        Assertions.assertThat(registry.getMeters()).noneMatch(meter -> meter.getId().getName().startsWith("jvm.gc"));
+        binder.release(registry);
+    }
+
+    @Test
+    void shouldNotBindAnythingWithNone() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        JvmMetricsBinder binder = JvmMetricsBinder.acquire(registry, JvmMetrics.NONE);
+
+        JvmMetricsBinder.bindTo(registry);
+
+        Assertions.assertThat(registry.getMeters()).isEmpty();
+        binder.release(registry);
+    }
+
+    @Test
+    void shouldShareBinderUntilLastServerReleasesIt() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        JvmMetricsBinder first = JvmMetricsBinder.acquire(registry, JvmMetrics.ALL);
+        JvmMetricsBinder second = JvmMetricsBinder.acquire(registry, JvmMetrics.MINIMAL);
+        Assertions.assertThat(second).isSameAs(first);
+
+        first.release(registry);
+        Assertions.assertThat(JvmMetricsBinder.acquire(registry, JvmMetrics.ALL)).isSameAs(first);
+        first.release(registry);
+        second.release(registry);
+
+        JvmMetricsBinder third = JvmMetricsBinder.acquire(registry, JvmMetrics.ALL);
+        Assertions.assertThat(third).isNotSameAs(first);
+        third.release(registry);
+    }
+
+    @Test
+    void shouldThrowExceptionWhenSystemPropertyIsUnknown() {
+        System.setProperty(JvmMetrics.PROPERTY, "some");
+        try {
+            Assertions.assertThatThrownBy(() -> new MetricsConfiguration().useRequestUrl().validate())
+                .isInstanceOf(IllegalStateException.class);
+            System.setProperty(JvmMetrics.PROPERTY, "Minimal");
+            Assertions.assertThat(new MetricsConfiguration().getJvmMetrics()).isEqualTo(JvmMetrics.MINIMAL);
+        } finally {
+            System.clearProperty(JvmMetrics.PROPERTY);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.rasklaad.wiremock.metrics;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+public class LiveStatsTest {
+
+    @Test
+    void shouldAggregateCompleteSecondsPerWindow() {
+        LiveStats.Window window = new LiveStats().window(new MetersGroup("/test"), null);
+        for (int i = 0; i < 10; i++) {
+            window.record(99, 5, 200);
+        }
+        for (int i = 0; i < 20; i++) {
+            window.record(105, 50, i < 5 ? 500 : 200);
+        }
+        // current second isn't complete yet
+        window.record(110, 1000, 200);
+
+        Map<String, Object> snapshot = window.snapshot(110);
+
+        Assertions.assertThat(snapshot).containsEntry("path", "/test");
+        Assertions.assertThat(stats(snapshot, "1s")).containsEntry("rps", 0.0).containsEntry("p50", null);
+        Assertions.assertThat(stats(snapshot, "10s"))
+            .containsEntry("rps", 2.0)
+            .containsEntry("errorRate", 0.25)
+            .containsEntry("p50", 55L);
+        Assertions.assertThat(stats(snapshot, "60s"))
+            .containsEntry("rps", 0.5)
+            .containsEntry("errorRate", 5.0 / 30)
+            .containsEntry("p50", 55L)
+            .containsEntry("p90", 55L);
+    }
+
+    @Test
+    void shouldDropSecondsOlderThanLongestWindow() {
+        LiveStats.Window window = new LiveStats().window(new MetersGroup("/test"), "first");
+        window.record(100, 5, 200);
+
+        Assertions.assertThat(window.snapshot(160)).isNotNull().containsEntry("instance", "first");
+        Assertions.assertThat(window.snapshot(161)).isNull();
+        // slot is reused 64 seconds later
+        window.record(164, 5, 200);
+        Assertions.assertThat(stats(window.snapshot(165), "1s")).containsEntry("rps", 1.0);
+    }
+
+    @Test
+    void shouldPurgeWindowsOfRetiredGroups() {
+        LiveStats liveStats = new LiveStats();
+        MetersGroup group = new MetersGroup("/test");
+        liveStats.window(group, null).record(5, 200);
+
+        group.retire(meters -> {
+        });
+        liveStats.purge();
+
+        Assertions.assertThat(liveStats.snapshot()).isEmpty();
+    }
+
+    @Test
+    void shouldKeepBucketUpperBoundsWithinQuarterOfValue() {
+        for (int value = 0; value < 1 << 20; value++) {
+            long upperBound = LiveStats.Window.upperBound(LiveStats.Window.bucket(value));
+            Assertions.assertThat(upperBound).isBetween((long) value, value + value / 4L);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> stats(Map<String, Object> snapshot, String window) {
+        return (Map<String, Object>) snapshot.get(window);
+    }
+}
@@ -5,14 +5,17 @@ import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
 import com.github.tomakehurst.wiremock.matching.UrlPattern;
 import com.github.tomakehurst.wiremock.stubbing.StubMapping;
-import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Metrics;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
 import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -20,9 +23,16 @@ import org.junit.jupiter.params.provider.MethodSource;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 public class MetricsExtensionTest {
     private static final OkHttpClient client = new OkHttpClient.Builder().build();
@@ -30,27 +40,40 @@ public class MetricsExtensionTest {
 
 
     private WireMockServer startServer(MetricsConfiguration configuration) {
+        // Metrics.add add values from previous tests
+        Metrics.globalRegistry.clear();
         WireMockConfiguration config = new WireMockConfiguration()
             .dynamicPort()
             .extensions(new PrometheusMetricsExtension(configuration), new MetricsEndpointExtension());
         WireMockServer server = new WireMockServer(config);
         server.start();
         this.server = server;
+
+        return server;
+    }
+
+    private WireMockServer startServer(MetricsConfiguration configuration, MetricsConfiguration endpointConfiguration) {
         // Metrics.add add values from previous tests
-        Metrics.globalRegistry.getRegistries().forEach(MeterRegistry::clear);
+        Metrics.globalRegistry.clear();
+        WireMockConfiguration config = new WireMockConfiguration()
+            .dynamicPort()
+            .extensions(new PrometheusMetricsExtension(configuration), new MetricsEndpointExtension(endpointConfiguration));
+        WireMockServer server = new WireMockServer(config);
+        server.start();
+        this.server = server;
 
         return server;
     }
 
     private WireMockServer startServer() {
+        // Metrics.add add values from previous tests
+        Metrics.globalRegistry.clear();
         WireMockConfiguration config = new WireMockConfiguration()
             .dynamicPort()
             .extensions(new PrometheusMetricsExtension(), new MetricsEndpointExtension());
         WireMockServer server = new WireMockServer(config);
         server.start();
         this.server = server;
-        // Metrics.add add values from previous tests
-        Metrics.globalRegistry.getRegistries().forEach(MeterRegistry::clear);
 
         return server;
     }
@@ -108,6 +131,42 @@ public class MetricsExtensionTest {
         Assertions.assertThat(metrics).contains("wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/simple-test\",status=\"200\",} 2.0");
     }
 
+    @Test
+    void shouldRegisterSeparateSeriesForEachMethodAndStatus() throws IOException, InterruptedException {
+        WireMockServer server = startServer();
+
+        server.addStubMapping(WireMock.get(WireMock.urlPathEqualTo("/status-test"))
+            .willReturn(WireMock.aResponse()
+                .withStatus(200)).build());
+        server.addStubMapping(WireMock.get(WireMock.urlPathEqualTo("/status-test"))
+            .withHeader("X-Fail", WireMock.equalTo("true"))
+            .willReturn(WireMock.aResponse()
+                .withStatus(500)).build());
+        server.addStubMapping(WireMock.post(WireMock.urlPathEqualTo("/status-test"))
+            .willReturn(WireMock.aResponse()
+                .withStatus(201)).build());
+
+        httpCall(server, "/status-test");
+        httpCall(server, "/status-test");
+        client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/status-test")
+            .header("X-Fail", "true")
+            .build()).execute().close();
+        client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/status-test")
+            .post(RequestBody.create(new byte[0]))
+            .build()).execute().close();
+        Thread.sleep(1_000L);
+
+        List<String> metrics = scrape(server);
+        Assertions.assertThat(metrics).contains(
+            "wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/status-test\",status=\"200\",} 2.0",
+            "wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/status-test\",status=\"500\",} 1.0",
+            "wiremock_request_totalTime_ms_count{method=\"POST\",path=\"/status-test\",status=\"201\",} 1.0",
+            "wiremock_request_serveTime_ms_count{method=\"GET\",path=\"/status-test\",status=\"200\",} 2.0"
+        );
+    }
+
     @Test
     void shouldThrowExceptionWhenBothMappingAndUrlOptionsAreAbsent() {
         Assertions.assertThatThrownBy(() -> startServer(new MetricsConfiguration()))
@@ -210,7 +269,7 @@ public class MetricsExtensionTest {
         Thread.sleep(1000L);
 
         List<String> metrics = scrape(server);
-        List<String> filtered = metrics.stream().filter(s -> s.startsWith("wiremock")).collect(Collectors.toList());
+        List<String> filtered = metrics.stream().filter(s -> s.startsWith("wiremock_request")).collect(Collectors.toList());
         Assertions.assertThat(filtered).isEmpty();
 
     }
@@ -235,4 +294,811 @@ public class MetricsExtensionTest {
         Assertions.assertThat(metrics).contains("wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/any-url?param=true\",status=\"200\",} 1.0");
     }
 
+    @Test
+    void shouldRegisterPathsOverBudgetAsOverflow() throws IOException, InterruptedException {
+        WireMockServer server = startServer(
+            new MetricsConfiguration()
+                .useRequestUrl()
+                .maximumPathSeries(2)
+        );
+        server.addStubMapping(WireMock.any(WireMock.anyUrl())
+            .willReturn(WireMock.aResponse()
+                .withStatus(200)).build());
+
+        httpCall(server, "/first");
+        httpCall(server, "/second");
+        httpCall(server, "/third");
+        httpCall(server, "/fourth");
+        httpCall(server, "/first");
+        Thread.sleep(1000L);
+
+        List<String> metrics = scrape(server);
+        Assertions.assertThat(metrics).contains(
+            "wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/first\",status=\"200\",} 2.0",
+            "wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/second\",status=\"200\",} 1.0",
+            "wiremock_request_totalTime_ms_count{method=\"GET\",path=\"__overflow__\",status=\"200\",} 2.0",
+            "wiremock_metrics_overflow_total 2.0"
+        );
+        Assertions.assertThat(metrics).noneMatch(line -> line.contains("path=\"/third\""));
+    }
+
+    @Test
+    void shouldThrowExceptionWhenMaximumPathSeriesIsNotPositive() {
+        Assertions.assertThatThrownBy(() -> startServer(new MetricsConfiguration().useRequestUrl().maximumPathSeries(0)))
+            .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void shouldPublishConfiguredHistogramModeForEachTiming() throws IOException, InterruptedException {
+        WireMockServer server = startServer(
+            new MetricsConfiguration()
+                .useRequestUrl()
+                .totalTimeHistogram(HistogramMode.sloBuckets(50, 100, 500))
+                .processingTimeHistogram(HistogramMode.percentiles(0.5, 0.99))
+                .serveTimeHistogram(HistogramMode.summary())
+        );
+        server.addStubMapping(createDefaultMapping());
+
+        httpCall(server, "/test");
+        Thread.sleep(1000L);
+
+        List<String> metrics = scrape(server);
+        Assertions.assertThat(metrics)
+            .filteredOn(line -> line.startsWith("wiremock_request_totalTime_ms_bucket"))
+            .hasSize(4)
+            .anyMatch(line -> line.contains("le=\"100.0\""));
+        Assertions.assertThat(metrics)
+            .contains("# TYPE wiremock_request_processingTime_ms summary")
+            .anyMatch(line -> line.startsWith("wiremock_request_processingTime_ms{") && line.contains("quantile=\"0.99\""))
+            .noneMatch(line -> line.startsWith("wiremock_request_processingTime_ms_bucket"))
+            .noneMatch(line -> line.startsWith("wiremock_request_serveTime_ms_bucket"))
+            .noneMatch(line -> line.startsWith("wiremock_request_serveTime_ms{"))
+            .contains("wiremock_request_serveTime_ms_count{method=\"GET\",path=\"/test\",status=\"200\",} 1.0")
+            .anyMatch(line -> line.startsWith("wiremock_request_responseSendTime_ms_bucket"));
+    }
+
+    @Test
+    void shouldThrowExceptionWhenSloBucketsAreEmpty() {
+        Assertions.assertThatThrownBy(() -> startServer(new MetricsConfiguration().useRequestUrl().histogramMode(HistogramMode.sloBuckets())))
+            .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void shouldScrapeSeveralServersWithOwnRegistriesSeparately() throws IOException, InterruptedException {
+        Metrics.globalRegistry.clear();
+        MetricsConfiguration firstConfiguration = new MetricsConfiguration()
+            .useRequestUrl()
+            .meterRegistry(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT))
+            .instance("first");
+        MetricsConfiguration secondConfiguration = new MetricsConfiguration()
+            .useRequestUrl()
+            .meterRegistry(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT))
+            .instance("second");
+        WireMockServer first = new WireMockServer(new WireMockConfiguration()
+            .dynamicPort()
+            .extensions(new PrometheusMetricsExtension(firstConfiguration), new MetricsEndpointExtension(firstConfiguration)));
+        WireMockServer second = new WireMockServer(new WireMockConfiguration()
+            .dynamicPort()
+            .extensions(new PrometheusMetricsExtension(secondConfiguration), new MetricsEndpointExtension(secondConfiguration)));
+        try {
+            first.start();
+            second.start();
+            first.addStubMapping(createDefaultMapping());
+            second.addStubMapping(createDefaultMapping());
+
+            httpCall(first, "/test");
+            httpCall(second, "/test");
+            httpCall(second, "/test");
+            Thread.sleep(1000L);
+
+            Assertions.assertThat(Metrics.globalRegistry.getRegistries()).isEmpty();
+            List<String> firstMetrics = scrape(first);
+            Assertions.assertThat(firstMetrics)
+                .contains("wiremock_request_totalTime_ms_count{instance=\"first\",method=\"GET\",path=\"/test\",status=\"200\",} 1.0")
+                .noneMatch(line -> line.contains("instance=\"second\""));
+            List<String> secondMetrics = scrape(second);
+            Assertions.assertThat(secondMetrics)
+                .contains("wiremock_request_totalTime_ms_count{instance=\"second\",method=\"GET\",path=\"/test\",status=\"200\",} 2.0")
+                .noneMatch(line -> line.contains("instance=\"first\""));
+        } finally {
+            first.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    void shouldBindJvmMetricsOnScrape() throws IOException {
+        WireMockServer server = startServer(new MetricsConfiguration().useRequestUrl().jvmMetrics(JvmMetrics.MINIMAL));
+
+        List<String> metrics = scrape(server);
+        Assertions.assertThat(metrics)
+            .anyMatch(line -> line.startsWith("jvm_memory_used_bytes"))
+            .noneMatch(line -> line.startsWith("jvm_classes_loaded"));
+    }
+
+    @Test
+    void shouldNotBindJvmMetricsWhenDisabled() throws IOException {
+        WireMockServer server = startServer(new MetricsConfiguration().useRequestUrl().jvmMetrics(JvmMetrics.NONE));
+
+        List<String> metrics = scrape(server);
+        Assertions.assertThat(metrics).noneMatch(line -> line.startsWith("jvm_") || line.startsWith("process_"));
+    }
+
+    @Test
+    void shouldReleaseRegistryWhenServerIsStoppedWithoutShutdown(@TempDir Path directory) throws IOException, InterruptedException {
+        // registry stays reachable from GC listeners until they are closed
+        Path file = directory.resolve("metrics.bin");
+        WeakReference<PrometheusMeterRegistry> registry = scrapeAndStopServer(file);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (registry.get() != null && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        Assertions.assertThat(registry.get()).isNull();
+        // released persistence wrote the last checkpoint
+        Assertions.assertThat(Files.size(file)).isGreaterThan(0);
+    }
+
+    private WeakReference<PrometheusMeterRegistry> scrapeAndStopServer(Path file) throws IOException {
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        MetricsConfiguration configuration = new MetricsConfiguration()
+            .useRequestUrl()
+            .meterRegistry(registry)
+            .jvmMetrics(JvmMetrics.ALL)
+            .stubMatchingMetrics(5)
+            .expireIdleSeriesAfter(Duration.ofMinutes(1))
+            .recordAsynchronously()
+            .persistMetrics(file, Duration.ofMinutes(1));
+        WireMockServer server = new WireMockServer(new WireMockConfiguration()
+            .dynamicPort()
+            .extensions(new PrometheusMetricsExtension(configuration), new MetricsEndpointExtension(configuration)));
+        server.start();
+        try {
+            server.addStubMapping(createDefaultMapping());
+            httpCall(server, "/test");
+            Assertions.assertThat(scrape(server)).anyMatch(line -> line.startsWith("jvm_gc_"));
+        } finally {
+            server.stop();
+        }
+        return new WeakReference<>(registry);
+    }
+
+    @Test
+    void shouldRegisterRequestUrlsByPathTemplates() throws IOException, InterruptedException {
+        WireMockServer server = startServer(
+            new MetricsConfiguration()
+                .useRequestUrl()
+                .detectPathIds()
+                .pathTemplates("/users/{name}/orders")
+        );
+        server.addStubMapping(WireMock.any(WireMock.anyUrl())
+            .willReturn(WireMock.aResponse()
+                .withStatus(200)).build());
+
+        httpCall(server, "/orders/1?page=1");
+        httpCall(server, "/orders/2");
+        httpCall(server, "/users/john/orders");
+        httpCall(server, "/users/jane/orders");
+        Thread.sleep(1000L);
+
+        List<String> metrics = scrape(server);
+        Assertions.assertThat(metrics).contains(
+            "wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/orders/{id}\",status=\"200\",} 2.0",
+            "wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/users/{name}/orders\",status=\"200\",} 2.0"
+        );
+    }
+
+    @Test
+    void shouldRegisterMetricsByStubMapping() throws IOException, InterruptedException {
+        WireMockServer server = startServer(new MetricsConfiguration().useStubMapping());
+        StubMapping json = WireMock.post(WireMock.urlPathEqualTo("/orders"))
+            .withHeader("Content-Type", WireMock.containing("json"))
+            .willReturn(WireMock.aResponse().withStatus(201))
+            .withName("create json order")
+            .build();
+        StubMapping other = WireMock.post(WireMock.urlPathEqualTo("/orders"))
+            .atPriority(10)
+            .willReturn(WireMock.aResponse().withStatus(201))
+            .build();
+        server.addStubMapping(json);
+        server.addStubMapping(other);
+
+        RequestBody body = RequestBody.create("{}", okhttp3.MediaType.get("application/json"));
+        client.newCall(new Request.Builder().url(server.baseUrl() + "/orders").post(body).build()).execute().close();
+        client.newCall(new Request.Builder().url(server.baseUrl() + "/orders").post(RequestBody.create("", null)).build()).execute().close();
+        client.newCall(new Request.Builder().url(server.baseUrl() + "/orders").post(RequestBody.create("", null)).build()).execute().close();
+        Thread.sleep(1000L);
+
+        Assertions.assertThat(scrape(server)).contains(
+            "wiremock_request_totalTime_ms_count{method=\"POST\",path=\"/orders\",status=\"201\",stub=\"create json order\",} 1.0",
+            "wiremock_request_totalTime_ms_count{method=\"POST\",path=\"/orders\",status=\"201\",stub=\"" + other.getId() + "\",} 2.0"
+        );
+
+        server.removeStubMapping(other);
+        Assertions.assertThat(scrape(server))
+            .noneMatch(line -> line.contains(other.getId().toString()))
+            .anyMatch(line -> line.contains("stub=\"create json order\""));
+    }
+
+    @Test
+    void shouldThrowExceptionWhenStubMappingAndUrlOptionsArePresent() {
+        Assertions.assertThatThrownBy(() -> startServer(new MetricsConfiguration().useStubMapping().useRequestUrl()))
+            .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void shouldRegisterBodySizes() throws IOException, InterruptedException {
+        WireMockServer server = startServer(
+            new MetricsConfiguration()
+                .useRequestUrl()
+                .requestBodySizeMetricEnabled(true)
+                .responseBodySizeMetricEnabled(true)
+        );
+        server.addStubMapping(WireMock.post(WireMock.urlPathEqualTo("/upload"))
+            .willReturn(WireMock.aResponse()
+                .withStatus(200)
+                .withBody("0123456789")).build());
+
+        client.newCall(new Request.Builder().url(server.baseUrl() + "/upload").post(RequestBody.create("12345", null)).build()).execute().close();
+        client.newCall(new Request.Builder().url(server.baseUrl() + "/upload").post(RequestBody.create("123", null)).build()).execute().close();
+        Thread.sleep(1000L);
+
+        Assertions.assertThat(scrape(server)).contains(
+            "wiremock_request_bodySize_bytes_count{method=\"POST\",path=\"/upload\",status=\"200\",} 2.0",
+            "wiremock_request_bodySize_bytes_sum{method=\"POST\",path=\"/upload\",status=\"200\",} 8.0",
+            "wiremock_response_bodySize_bytes_sum{method=\"POST\",path=\"/upload\",status=\"200\",} 20.0"
+        );
+    }
+
+    @Test
+    void shouldNotRegisterBodySizesByDefault() throws IOException, InterruptedException {
+        WireMockServer server = startServer();
+        server.addStubMapping(createDefaultMapping());
+
+        httpCall(server, "/test");
+        Thread.sleep(1000L);
+
+        Assertions.assertThat(scrape(server)).noneMatch(line -> line.contains("bodySize"));
+    }
+
+    @Test
+    void shouldCountAllRequestsAndSampleTimings() throws IOException, InterruptedException {
+        WireMockServer server = startServer(new MetricsConfiguration().useRequestUrl().sampleRatio(0.5));
+        server.addStubMapping(createDefaultMapping());
+
+        for (int i = 0; i < 20; i++) {
+            httpCall(server, "/test");
+        }
+        Thread.sleep(1000L);
+
+        List<String> metrics = scrape(server);
+        Assertions.assertThat(metrics).contains(
+            "wiremock_requests_total{method=\"GET\",path=\"/test\",status=\"200\",} 20.0",
+            "wiremock_metrics_sample_ratio 0.5"
+        );
+        // every request thread records every second request it serves
+        String sampledCount = "wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/test\",sampled=\"true\",status=\"200\",} ";
+        Assertions.assertThat(metrics)
+            .filteredOn(line -> line.startsWith(sampledCount))
+            .singleElement()
+            .satisfies(line -> Assertions.assertThat(Double.parseDouble(line.substring(sampledCount.length()))).isLessThan(20.0));
+    }
+
+    @Test
+    void shouldThrowExceptionWhenSampleRatioIsOutOfRange() {
+        Assertions.assertThatThrownBy(() -> startServer(new MetricsConfiguration().useRequestUrl().sampleRatio(0)))
+            .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void shouldRecordHighResolutionTimings() throws IOException, InterruptedException {
+        WireMockServer server = startServer(new MetricsConfiguration().useRequestUrl().highResolutionTimings(5, 50));
+        server.addStubMapping(createDefaultMapping());
+
+        httpCall(server, "/test");
+        httpCall(server, "/test");
+        Thread.sleep(1000L);
+
+        List<String> metrics = scrape(server);
+        Assertions.assertThat(metrics)
+            .contains(
+                "# TYPE wiremock_request_totalTime_hdr_ms summary",
+                "wiremock_request_totalTime_hdr_ms_count{method=\"GET\",path=\"/test\",status=\"200\",} 2.0",
+                "wiremock_request_serveTime_hdr_ms_buckets_bucket{method=\"GET\",path=\"/test\",status=\"200\",le=\"+Inf\",} 2.0"
+            )
+            .anyMatch(line -> line.startsWith("wiremock_request_processingTime_hdr_ms{") && line.contains("quantile=\"0.999\""))
+            .noneMatch(line -> line.startsWith("wiremock_request_totalTime_ms"));
+    }
+
+    @Test
+    void shouldServeLiveStats() throws IOException, InterruptedException {
+        WireMockServer server = startServer(new MetricsConfiguration().useRequestUrl().liveStats());
+        server.addStubMapping(createDefaultMapping());
+        server.addStubMapping(WireMock.get("/failing").willReturn(WireMock.serverError()).build());
+
+        httpCall(server, "/test");
+        httpCall(server, "/test");
+        httpCall(server, "/failing");
+        // stats cover complete seconds only
+        Thread.sleep(1100L);
+
+        Response response = client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/__admin/metrics/live")
+            .build()).execute();
+        Assertions.assertThat(response.code()).isEqualTo(200);
+        String body = response.body().string();
+        Assertions.assertThat(body)
+            .contains("\"path\" : \"/test\"", "\"path\" : \"/failing\"", "\"60s\"", "\"p99\"")
+            .contains("\"errorRate\" : 1.0");
+    }
+
+    @Test
+    void shouldNotServeLiveStatsByDefault() throws IOException {
+        WireMockServer server = startServer();
+
+        Response response = client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/__admin/metrics/live")
+            .build()).execute();
+        response.close();
+
+        Assertions.assertThat(response.code()).isEqualTo(404);
+    }
+
+    @Test
+    void shouldAttachTraceIdExemplars() throws IOException {
+        WireMockServer server = startServer(new MetricsConfiguration().useRequestUrl().exemplars("traceparent"));
+        server.addStubMapping(createDefaultMapping());
+
+        client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/test")
+            .header("traceparent", "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01")
+            .build()).execute().close();
+
+        Response response = client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/__admin/prometheus-metrics")
+            .header("Accept", "application/openmetrics-text; version=1.0.0")
+            .build()).execute();
+        Assertions.assertThat(response.body().string().split("\n"))
+            .anyMatch(line -> line.startsWith("wiremock_request_totalTime_ms_bucket{")
+                && line.contains("# {trace_id=\"4bf92f3577b34da6a3ce929d0e0e4736\"}"));
+    }
+
+    @Test
+    void shouldKeepSlowestRequests() throws IOException {
+        WireMockServer server = startServer(new MetricsConfiguration().useRequestUrl().slowestRequests(2));
+        server.addStubMapping(WireMock.get("/slow").willReturn(WireMock.ok().withFixedDelay(200)).build());
+        server.addStubMapping(createDefaultMapping());
+
+        httpCall(server, "/test");
+        httpCall(server, "/test");
+        httpCall(server, "/slow");
+        httpCall(server, "/test");
+
+        Response response = client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/__admin/metrics/slowest-requests")
+            .build()).execute();
+        Assertions.assertThat(response.code()).isEqualTo(200);
+        String body = response.body().string();
+        Assertions.assertThat(body)
+            .contains("\"path\" : \"/test\"", "\"path\" : \"/slow\"", "\"url\" : \"/slow\"", "\"loggedDate\"")
+            // three requests to /test keep two slots
+            .containsOnlyOnce("\"url\" : \"/slow\"")
+            .satisfies(json -> Assertions.assertThat(json.split("\"method\"", -1)).hasSize(4));
+    }
+
+    @Test
+    void shouldNotKeepSlowestRequestsByDefault() throws IOException {
+        WireMockServer server = startServer();
+
+        Response response = client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/__admin/metrics/slowest-requests")
+            .build()).execute();
+        response.close();
+
+        Assertions.assertThat(response.code()).isEqualTo(404);
+    }
+
+    @Test
+    void shouldRecordAsynchronously() throws IOException, InterruptedException {
+        WireMockServer server = startServer(
+            new MetricsConfiguration()
+                .useRequestUrl()
+                .recordAsynchronously()
+                .asyncBufferSize(16)
+                .asyncConsumerThreads(2)
+                .asyncBackPressure(BackPressure.BLOCK)
+        );
+        server.addStubMapping(createDefaultMapping());
+
+        for (int i = 0; i < 50; i++) {
+            httpCall(server, "/test");
+        }
+        Thread.sleep(1000L);
+
+        List<String> metrics = scrape(server);
+        Assertions.assertThat(metrics).contains(
+            "wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/test\",status=\"200\",} 50.0",
+            "wiremock_request_responseSendTime_ms_count{method=\"GET\",path=\"/test\",status=\"200\",} 50.0",
+            "wiremock_metrics_async_queue_depth 0.0",
+            "wiremock_metrics_async_queue_capacity 16.0",
+            "wiremock_metrics_async_dropped_total 0.0"
+        );
+    }
+
+    @Test
+    void shouldThrowExceptionWhenAsyncBufferIsTooSmall() {
+        Assertions.assertThatThrownBy(() -> startServer(new MetricsConfiguration().useRequestUrl().recordAsynchronously().asyncBufferSize(1)))
+            .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void shouldGzipScrapeWhenClientAcceptsIt() throws IOException, InterruptedException {
+        WireMockServer server = startServer();
+        server.addStubMapping(createDefaultMapping());
+
+        httpCall(server, "/test");
+        Thread.sleep(1000L);
+
+        try (Response response = client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/__admin/prometheus-metrics")
+            .header("Accept-Encoding", "gzip")
+            .build()).execute()) {
+            Assertions.assertThat(response.header("Content-Encoding")).isEqualTo("gzip");
+            Assertions.assertThat(response.header("Content-Type")).startsWith("text/plain; version=0.0.4");
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(response.body().byteStream())))) {
+                Assertions.assertThat(reader.lines()).contains("wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/test\",status=\"200\",} 1.0");
+            }
+        }
+    }
+
+    @Test
+    void shouldServeOpenMetricsWhenRequested() throws IOException {
+        startServer();
+
+        try (Response response = client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/__admin/prometheus-metrics")
+            .header("Accept", "application/openmetrics-text; version=1.0.0; charset=utf-8")
+            .build()).execute()) {
+            Assertions.assertThat(response.header("Content-Type")).startsWith("application/openmetrics-text");
+            Assertions.assertThat(response.body().string()).endsWith("# EOF\n");
+        }
+    }
+
+    @Test
+    void shouldReuseScrapeWithinCacheTtl() throws IOException, InterruptedException {
+        MetricsConfiguration configuration = new MetricsConfiguration()
+            .useRequestUrl()
+            .scrapeCacheTtl(Duration.ofMinutes(1));
+        WireMockServer server = startServer(configuration, configuration);
+        server.addStubMapping(createDefaultMapping());
+
+        httpCall(server, "/test");
+        Thread.sleep(1000L);
+        List<String> first = scrape(server);
+        httpCall(server, "/test");
+        Thread.sleep(1000L);
+        List<String> second = scrape(server);
+
+        Assertions.assertThat(first).contains("wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/test\",status=\"200\",} 1.0");
+        Assertions.assertThat(second).isEqualTo(first);
+    }
+
+    @Test
+    void shouldEvictIdleSeriesAndRecreateThemWhenRequestedAgain() throws IOException, InterruptedException {
+        WireMockServer server = startServer(
+            new MetricsConfiguration()
+                .useRequestUrl()
+                .expireIdleSeriesAfter(Duration.ofSeconds(1))
+        );
+        server.addStubMapping(WireMock.any(WireMock.anyUrl())
+            .willReturn(WireMock.aResponse()
+                .withStatus(200)).build());
+
+        httpCall(server, "/idle");
+        httpCall(server, "/idle");
+        Thread.sleep(3000L);
+        httpCall(server, "/active");
+        Thread.sleep(300L);
+
+        List<String> metrics = scrape(server);
+        Assertions.assertThat(metrics).noneMatch(line -> line.contains("path=\"/idle\""));
+        Assertions.assertThat(metrics).contains(
+            "wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/active\",status=\"200\",} 1.0",
+            "wiremock_metrics_evicted_total 1.0"
+        );
+
+        httpCall(server, "/idle");
+        Thread.sleep(300L);
+
+        Assertions.assertThat(scrape(server)).contains(
+            "wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/idle\",status=\"200\",} 1.0",
+            "wiremock_request_processingTime_ms_count{method=\"GET\",path=\"/idle\",status=\"200\",} 1.0"
+        );
+    }
+
+    @Test
+    void shouldReconfigureCollectionAtRuntime() throws IOException, InterruptedException {
+        WireMockServer server = startServer();
+        server.addStubMapping(WireMock.any(WireMock.anyUrl())
+            .willReturn(WireMock.aResponse()
+                .withStatus(200)).build());
+
+        httpCall(server, "/test?page=1");
+        Thread.sleep(300L);
+        Assertions.assertThat(scrape(server))
+            .anyMatch(line -> line.startsWith("wiremock_request_serveTime_ms_count{method=\"GET\",path=\"/test?page=1\""));
+
+        Response update = client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/__admin/prometheus-metrics/config")
+            .put(RequestBody.create("{\"ignoreQueryParams\": true, \"serveTimeMetricEnabled\": false}", null))
+            .build()).execute();
+        Assertions.assertThat(update.code()).isEqualTo(200);
+        Assertions.assertThat(update.body().string()).contains("\"ignoreQueryParams\" : true", "\"serveTimeMetricEnabled\" : false");
+
+        httpCall(server, "/test?page=2");
+        Thread.sleep(300L);
+
+        List<String> metrics = scrape(server);
+        Assertions.assertThat(metrics)
+            .contains("wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/test\",status=\"200\",} 1.0")
+            .noneMatch(line -> line.contains("page=1"))
+            .noneMatch(line -> line.startsWith("wiremock_request_serveTime_ms"));
+
+        Response current = client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/__admin/prometheus-metrics/config")
+            .build()).execute();
+        Assertions.assertThat(current.body().string()).contains("\"ignoreQueryParams\" : true", "\"totalTimeMetricEnabled\" : true");
+    }
+
+    @Test
+    void shouldKeepSeriesUnrelatedToChangedSettings() throws IOException, InterruptedException {
+        WireMockServer server = startServer(new MetricsConfiguration().useRequestUrl());
+        server.addStubMapping(createDefaultMapping());
+        httpCall(server, "/test");
+        httpCall(server, "/test");
+        Thread.sleep(300L);
+
+        try (Response update = updateSettings(server, "{\"registerNotMatchedRequests\": false}")) {
+            Assertions.assertThat(update.code()).isEqualTo(200);
+        }
+        try (Response update = updateSettings(server, "{\"serveTimeMetricEnabled\": false, \"requestBodySizeMetricEnabled\": true}")) {
+            Assertions.assertThat(update.code()).isEqualTo(200);
+        }
+        httpCall(server, "/test");
+        Thread.sleep(300L);
+
+        Assertions.assertThat(scrape(server))
+            .contains("wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/test\",status=\"200\",} 3.0")
+            .contains("wiremock_request_bodySize_bytes_count{method=\"GET\",path=\"/test\",status=\"200\",} 1.0")
+            .noneMatch(line -> line.startsWith("wiremock_request_serveTime_ms"));
+    }
+
+    @Test
+    void shouldRejectSettingsWithoutBody() throws IOException {
+        WireMockServer server = startServer();
+
+        for (String body : Arrays.asList("", "null")) {
+            Response update = updateSettings(server, body);
+            Assertions.assertThat(update.code()).isEqualTo(400);
+            Assertions.assertThat(update.body().string()).contains("Request body must be a json object of settings");
+        }
+    }
+
+    private Response updateSettings(WireMockServer server, String body) throws IOException {
+        return client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/__admin/prometheus-metrics/config")
+            .put(RequestBody.create(body, null))
+            .build()).execute();
+    }
+
+    @Test
+    void shouldRejectUnknownSettings() throws IOException {
+        WireMockServer server = startServer();
+
+        Response update = client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/__admin/prometheus-metrics/config")
+            .put(RequestBody.create("{\"useStubMapping\": true}", null))
+            .build()).execute();
+
+        Assertions.assertThat(update.code()).isEqualTo(400);
+        Assertions.assertThat(update.body().string()).contains("Unknown setting useStubMapping");
+    }
+
+    @Test
+    void shouldExportServerGauges() throws IOException {
+        Metrics.globalRegistry.clear();
+        JettyMetrics jettyMetrics = new JettyMetrics();
+        WireMockServer server = new WireMockServer(new WireMockConfiguration()
+            .dynamicPort()
+            .threadPoolFactory(jettyMetrics)
+            .networkTrafficListener(jettyMetrics)
+            .maxRequestJournalEntries(100)
+            .extensions(new PrometheusMetricsExtension(), new MetricsEndpointExtension()));
+        server.start();
+        this.server = server;
+        server.addStubMapping(createDefaultMapping());
+        server.addStubMapping(WireMock.get("/other").willReturn(WireMock.ok()).build());
+
+        httpCall(server, "/test");
+        httpCall(server, "/test");
+
+        List<String> metrics = scrape(server);
+        Assertions.assertThat(metrics)
+            .contains(
+                "wiremock_stubs 2.0",
+                "wiremock_journal_requests_max 100.0"
+            )
+            .anyMatch(line -> line.startsWith("wiremock_journal_requests ") && !line.equals("wiremock_journal_requests 0.0"))
+            .anyMatch(line -> line.startsWith("jetty_threads_busy "))
+            .anyMatch(line -> line.startsWith("jetty_threads_config_max "))
+            .anyMatch(line -> line.startsWith("jetty_connections_current "))
+            .anyMatch(line -> line.startsWith("jetty_connections_opened_total "))
+            .noneMatch(line -> line.startsWith("jetty_threads_busy NaN"));
+
+        // stub count is cached between stub changes
+        server.addStubMapping(WireMock.get("/third").willReturn(WireMock.ok()).build());
+        Assertions.assertThat(scrape(server)).contains("wiremock_stubs 3.0");
+        server.resetMappings();
+        Assertions.assertThat(scrape(server)).contains("wiremock_stubs 0.0");
+    }
+
+    @Test
+    void shouldNotExportJettyGaugesWithoutJettyMetrics() throws IOException {
+        WireMockServer server = startServer();
+
+        Assertions.assertThat(scrape(server))
+            .anyMatch(line -> line.startsWith("wiremock_stubs "))
+            .noneMatch(line -> line.startsWith("jetty_"));
+    }
+
+    @Test
+    void shouldMeasureStubMatching() throws IOException, InterruptedException {
+        WireMockServer server = startServer(new MetricsConfiguration().useRequestUrl().registerNotMatchedRequests().stubMatchingMetrics(5));
+        server.addStubMapping(createDefaultMapping());
+        server.addStubMapping(WireMock.get("/first").willReturn(WireMock.ok()).build());
+        server.addStubMapping(WireMock.get("/second").withName("second").willReturn(WireMock.ok()).build());
+        server.addStubMapping(WireMock.get("/low").atPriority(10).willReturn(WireMock.ok()).build());
+        // positions are computed in background after stubs change
+        Thread.sleep(300L);
+
+        httpCall(server, "/test");
+        httpCall(server, "/second");
+        httpCall(server, "/not-matched");
+        Thread.sleep(1000L);
+
+        List<String> metrics = scrape(server);
+        Assertions.assertThat(metrics)
+            .contains(
+                "wiremock_stub_match_seconds_count{matched=\"true\",} 2.0",
+                "wiremock_stub_match_seconds_count{matched=\"false\",} 1.0",
+                "wiremock_stub_respond_seconds_count 3.0",
+                // newest stub of default priority is evaluated first: /second is 1st, /test is 3rd,
+                // newer /low comes after them, not matched request evaluates all 4
+                "wiremock_stub_match_position_count 3.0",
+                "wiremock_stub_match_position_sum 8.0",
+                "wiremock_stub_match_slowest_position{stub=\"second\",path=\"/second\",} 1.0"
+            )
+            .anyMatch(line -> line.startsWith("wiremock_stub_match_slowest_seconds{stub=\"second\",path=\"/second\",}"))
+            // measured in nanoseconds, not whole milliseconds
+            .anyMatch(line -> line.startsWith("wiremock_stub_respond_seconds_sum ")
+                && Double.parseDouble(line.substring(line.indexOf(' ') + 1)) > 0)
+            .noneMatch(line -> line.contains("path=\"/first\""));
+    }
+
+    @Test
+    void shouldRecordDelayOvershoot() throws IOException, InterruptedException {
+        WireMockServer server = startServer(new MetricsConfiguration().useRequestUrl().delayMetricsEnabled(true));
+        server.addStubMapping(createDefaultMapping());
+        server.addStubMapping(WireMock.get("/delayed").willReturn(WireMock.ok().withFixedDelay(200)).build());
+
+        httpCall(server, "/delayed");
+        httpCall(server, "/test");
+        Thread.sleep(1000L);
+
+        List<String> metrics = scrape(server);
+        Assertions.assertThat(metrics)
+            .contains(
+                "wiremock_request_configuredDelay_ms_count{method=\"GET\",path=\"/delayed\",status=\"200\",} 1.0",
+                "wiremock_request_configuredDelay_ms_sum{method=\"GET\",path=\"/delayed\",status=\"200\",} 200.0",
+                "wiremock_request_delayOvershoot_ms_count{method=\"GET\",path=\"/delayed\",status=\"200\",} 1.0",
+                // responses without a delay are not recorded
+                "wiremock_request_delayOvershoot_ms_count{method=\"GET\",path=\"/test\",status=\"200\",} 0.0"
+            );
+    }
+
+    @Test
+    void shouldMergePeerMetricsIntoFederatedScrape() throws IOException, InterruptedException {
+        MetricsConfiguration firstConfiguration = new MetricsConfiguration()
+            .useRequestUrl()
+            .meterRegistry(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT));
+        MetricsConfiguration secondConfiguration = new MetricsConfiguration()
+            .useRequestUrl()
+            .meterRegistry(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT));
+        WireMockServer first = new WireMockServer(new WireMockConfiguration()
+            .dynamicPort()
+            .extensions(new PrometheusMetricsExtension(firstConfiguration), new MetricsEndpointExtension(firstConfiguration)));
+        WireMockServer second = new WireMockServer(new WireMockConfiguration()
+            .dynamicPort()
+            .extensions(new PrometheusMetricsExtension(secondConfiguration), new MetricsEndpointExtension(secondConfiguration)));
+        try {
+            first.start();
+            second.start();
+            String unavailablePeer = "http://localhost:1/__admin/prometheus-metrics";
+            WireMockServer aggregator = startServer(new MetricsConfiguration().useRequestUrl(), new MetricsConfiguration()
+                .useRequestUrl()
+                .federate(first.baseUrl() + "/__admin/prometheus-metrics", second.baseUrl() + "/__admin/prometheus-metrics", unavailablePeer)
+                .federationTimeout(Duration.ofSeconds(1)));
+            for (WireMockServer server : Arrays.asList(first, second, aggregator)) {
+                server.addStubMapping(createDefaultMapping());
+            }
+
+            httpCall(first, "/test");
+            httpCall(second, "/test");
+            httpCall(second, "/test");
+            httpCall(aggregator, "/test");
+            Thread.sleep(1000L);
+
+            Response response = client.newCall(new Request.Builder()
+                .url(aggregator.baseUrl() + "/__admin/prometheus-metrics/federated")
+                .build()).execute();
+            List<String> metrics;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.body().byteStream()))) {
+                metrics = reader.lines().collect(Collectors.toList());
+            }
+            Assertions.assertThat(metrics)
+                .containsOnlyOnce(
+                    "# TYPE wiremock_request_totalTime_ms histogram",
+                    "wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/test\",status=\"200\",} 4.0",
+                    "wiremock_request_totalTime_ms_bucket{method=\"GET\",path=\"/test\",status=\"200\",le=\"+Inf\",} 4.0",
+                    "wiremock_federation_peer_up{peer=\"" + first.baseUrl() + "/__admin/prometheus-metrics\",} 1.0",
+                    "wiremock_federation_peer_up{peer=\"" + unavailablePeer + "\",} 0.0"
+                );
+            Assertions.assertThat(scrape(aggregator))
+                .contains("wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/test\",status=\"200\",} 1.0");
+        } finally {
+            first.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    void shouldContinueRequestCountsAfterRestart(@TempDir Path directory) throws IOException, InterruptedException {
+        MetricsConfiguration configuration = new MetricsConfiguration()
+            .useRequestUrl()
+            .meterRegistry(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT))
+            .persistMetrics(directory.resolve("metrics.bin"));
+        WireMockServer server = startServer(configuration, configuration);
+        server.addStubMapping(createDefaultMapping());
+        httpCall(server, "/test");
+        httpCall(server, "/test");
+        Thread.sleep(1000L);
+        // stops extensions, so the last checkpoint is written
+        client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/__admin/shutdown")
+            .post(RequestBody.create(new byte[0]))
+            .build()).execute().close();
+        Thread.sleep(1000L);
+
+        // restarted process starts with empty registry
+        MetricsConfiguration restartedConfiguration = new MetricsConfiguration()
+            .useRequestUrl()
+            .meterRegistry(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT))
+            .persistMetrics(directory.resolve("metrics.bin"));
+        server = startServer(restartedConfiguration, restartedConfiguration);
+        server.addStubMapping(createDefaultMapping());
+        httpCall(server, "/test");
+        Thread.sleep(1000L);
+
+        Assertions.assertThat(scrape(server))
+            .containsOnlyOnce("wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/test\",status=\"200\",} 3.0");
+        try (Response response = client.newCall(new Request.Builder()
+            .url(server.baseUrl() + "/__admin/prometheus-metrics")
+            .header("Accept", "application/openmetrics-text; version=1.0.0")
+            .build()).execute()) {
+            Assertions.assertThat(response.header("Content-Type")).startsWith("application/openmetrics-text");
+            Assertions.assertThat(response.body().string().split("\n"))
+                .containsOnlyOnce("wiremock_request_totalTime_ms_count{method=\"GET\",path=\"/test\",status=\"200\"} 3.0");
+        }
+    }
 }
@@ -0,0 +1,145 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+public class MetricsPersistenceTest {
+    // first slot starts at 0, its payload follows 24 bytes of header
+    private static final int FIRST_SLOT_PAYLOAD = 24;
+
+    @TempDir
+    Path directory;
+
+    private static PrometheusMeterRegistry recordRequests(int requests) {
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        Counter counter = Counter.builder("wiremock.requests").tag("path", "/test").register(registry);
+        DistributionSummary totalTime = DistributionSummary.builder("wiremock.request.totalTime")
+            .baseUnit("ms")
+            .serviceLevelObjectives(10)
+            .tag("path", "/test")
+            .register(registry);
+        for (int i = 0; i < requests; i++) {
+            counter.increment();
+            totalTime.record(5);
+        }
+        Counter.builder("jvm.gc.pauses").register(registry).increment();
+        return registry;
+    }
+
+    private static List<String> restoredScrape(PrometheusMeterRegistry registry, MetricsPersistence persistence) throws IOException {
+        StringWriter writer = new StringWriter();
+        TextFormat.write004(writer, persistence.withBaseline(registry.getPrometheusRegistry().metricFamilySamples()));
+        return Arrays.asList(writer.toString().split("\n"));
+    }
+
+    @Test
+    void shouldAddRestoredValuesToScrape() throws IOException {
+        Path file = directory.resolve("metrics.bin");
+        PrometheusMeterRegistry before = recordRequests(2);
+        MetricsPersistence written = new MetricsPersistence(before, file, Duration.ofHours(1), () -> "config");
+        written.start();
+        written.stop();
+
+        PrometheusMeterRegistry after = recordRequests(1);
+        MetricsPersistence restored = new MetricsPersistence(after, file, Duration.ofHours(1), () -> "config");
+        restored.start();
+        try {
+            Assertions.assertThat(restoredScrape(after, restored))
+                .contains(
+                    "wiremock_requests_total{path=\"/test\",} 3.0",
+                    "wiremock_request_totalTime_ms_bucket{path=\"/test\",le=\"10.0\",} 3.0",
+                    "wiremock_request_totalTime_ms_count{path=\"/test\",} 3.0",
+                    "wiremock_request_totalTime_ms_sum{path=\"/test\",} 15.0",
+                    // maximum is not persisted, jvm metrics describe the new process
+                    "wiremock_request_totalTime_ms_max{path=\"/test\",} 5.0",
+                    "jvm_gc_pauses_total 1.0"
+                );
+        } finally {
+            restored.stop();
+        }
+    }
+
+    @Test
+    void shouldServeRestoredSeriesNotRecordedSinceStart() throws IOException {
+        Path file = directory.resolve("metrics.bin");
+        PrometheusMeterRegistry before = recordRequests(2);
+        Counter.builder("wiremock.requests").tag("path", "/other").register(before).increment();
+        MetricsPersistence written = new MetricsPersistence(before, file, Duration.ofHours(1), () -> "config");
+        written.start();
+        written.stop();
+
+        PrometheusMeterRegistry after = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        Counter.builder("wiremock.requests").tag("path", "/test").register(after).increment();
+        MetricsPersistence restored = new MetricsPersistence(after, file, Duration.ofHours(1), () -> "config");
+        restored.start();
+        try {
+            Assertions.assertThat(restoredScrape(after, restored))
+                .containsOnlyOnce(
+                    "# TYPE wiremock_requests_total counter",
+                    "wiremock_requests_total{path=\"/test\",} 3.0",
+                    "wiremock_requests_total{path=\"/other\",} 1.0",
+                    "# TYPE wiremock_request_totalTime_ms histogram",
+                    "wiremock_request_totalTime_ms_count{path=\"/test\",} 2.0"
+                );
+        } finally {
+            restored.stop();
+        }
+    }
+
+    @Test
+    void shouldNotRestoreSnapshotOfAnotherConfiguration() throws IOException {
+        Path file = directory.resolve("metrics.bin");
+        MetricsPersistence written = new MetricsPersistence(recordRequests(2), file, Duration.ofHours(1), () -> "config");
+        written.start();
+        written.stop();
+
+        MetricsPersistence restored = new MetricsPersistence(recordRequests(1), file, Duration.ofHours(1), () -> "another config");
+        restored.start();
+        try {
+            Assertions.assertThat(restored.hasBaseline()).isFalse();
+        } finally {
+            restored.stop();
+        }
+    }
+
+    @Test
+    void shouldRestorePreviousCheckpointWhenLatestIsTorn() throws IOException {
+        Path file = directory.resolve("metrics.bin");
+        PrometheusMeterRegistry before = recordRequests(1);
+        MetricsPersistence written = new MetricsPersistence(before, file, Duration.ofHours(1), () -> "config");
+        written.start();
+        // new file is grown and written into second slot, the next checkpoint goes to the first one
+        written.checkpoint();
+        before.counter("wiremock.requests", "path", "/test").increment();
+        written.stop();
+        try (RandomAccessFile tearing = new RandomAccessFile(file.toFile(), "rw")) {
+            tearing.seek(FIRST_SLOT_PAYLOAD + 10);
+            int original = tearing.read();
+            tearing.seek(FIRST_SLOT_PAYLOAD + 10);
+            tearing.write(original ^ 0xff);
+        }
+
+        PrometheusMeterRegistry after = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        MetricsPersistence restored = new MetricsPersistence(after, file, Duration.ofHours(1), () -> "config");
+        restored.start();
+        try {
+            Assertions.assertThat(restoredScrape(after, restored)).contains("wiremock_requests_total{path=\"/test\",} 1.0");
+        } finally {
+            restored.stop();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.rasklaad.wiremock.metrics;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.Collections;
+import java.util.stream.Stream;
+
+public class PathNormalizerTest {
+
+    private static Stream<Arguments> urlProvider() {
+        return Stream.of(
+            Arguments.of("/test", "/test"),
+            Arguments.of("/test?withQueryParam=true", "/test"),
+            Arguments.of("/test-something-with-param?withQueryParam=true", "/test-something-with-param"),
+            Arguments.of("/some-test?withQueryParam=true&another=1", "/some-test"),
+            Arguments.of("/test#fragment", "/test"),
+            Arguments.of("/test?query#fragment", "/test"),
+            Arguments.of("/some-t.+", "/some-t.+"),
+            Arguments.of("/with space?query=1", "/with space"),
+            Arguments.of("/broken%zz?query=1", "/broken%zz"),
+            Arguments.of("?only=query", ""),
+            Arguments.of("", "")
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("urlProvider")
+    void shouldStripQueryAndFragment(String url, String expectedPath) {
+        Assertions.assertThat(new PathNormalizer().normalize(url)).isEqualTo(expectedPath);
+    }
+
+    @Test
+    void shouldReturnSameInstanceForRepeatedUrl() {
+        PathNormalizer normalizer = new PathNormalizer();
+
+        String first = normalizer.normalize(new String("/test?query=1"));
+        String second = normalizer.normalize(new String("/test?query=1"));
+
+        Assertions.assertThat(second).isSameAs(first);
+    }
+
+    @Test
+    void shouldNotAllocateForUrlWithoutQuery() {
+        String url = "/test";
+
+        Assertions.assertThat(new PathNormalizer().normalize(url)).isSameAs(url);
+    }
+
+    @Test
+    void shouldStayCorrectWhenCacheIsSmallerThanNumberOfUrls() {
+        PathNormalizer normalizer = new PathNormalizer(2);
+
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertThat(normalizer.normalize("/test/" + i + "?query=" + i)).isEqualTo("/test/" + i);
+        }
+    }
+
+    @Test
+    void shouldTemplatePathWithoutQuery() {
+        PathNormalizer normalizer = new PathNormalizer(new PathTemplates(Collections.emptyList(), true));
+
+        Assertions.assertThat(normalizer.normalize("/orders/1?page=2")).isEqualTo("/orders/{id}");
+        Assertions.assertThat(normalizer.normalize("/orders/2")).isEqualTo("/orders/{id}");
+        Assertions.assertThat(normalizer.normalize(new String("/orders/2"))).isSameAs(normalizer.normalize("/orders/2"));
+    }
+}
@@ -0,0 +1,74 @@
+package com.rasklaad.wiremock.metrics;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Stream;
+
+public class PathTemplatesTest {
+
+    private static Stream<Arguments> idPathProvider() {
+        return Stream.of(
+            Arguments.of("/orders/123", "/orders/{id}"),
+            Arguments.of("/orders/123/items/7", "/orders/{id}/items/{id}"),
+            Arguments.of("/users/3f2504e0-4f89-11d3-9a0c-0305e82c3301/profile", "/users/{id}/profile"),
+            Arguments.of("/objects/5f1d7a9e8b3c4a2d1e0f9a8b", "/objects/{id}"),
+            Arguments.of("/objects/cafe", "/objects/cafe"),
+            Arguments.of("/v2/orders", "/v2/orders"),
+            Arguments.of("/orders/123/", "/orders/{id}/"),
+            Arguments.of("/orders//1", "/orders//{id}"),
+            Arguments.of("/", "/"),
+            Arguments.of("", "")
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("idPathProvider")
+    void shouldReplaceIdSegments(String path, String expected) {
+        PathTemplates templates = new PathTemplates(Collections.emptyList(), true);
+
+        Assertions.assertThat(templates.apply(path)).isEqualTo(expected);
+    }
+
+    private static Stream<Arguments> templatePathProvider() {
+        return Stream.of(
+            Arguments.of("/users/john/orders", "/users/{name}/orders"),
+            Arguments.of("/users/me/orders", "/users/me/orders"),
+            Arguments.of("/users/me/settings", "/users/{name}/settings"),
+            Arguments.of("/users/john", "/users/{name}"),
+            Arguments.of("/users/john/orders/42", "/users/john/orders/{id}"),
+            Arguments.of("/users//orders", "/users//orders"),
+            Arguments.of("/", "/")
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("templatePathProvider")
+    void shouldPreferLiteralSegmentsAndFallBackToIdDetection(String path, String expected) {
+        PathTemplates templates = new PathTemplates(
+            Arrays.asList("/users/{name}/orders", "/users/me/orders", "/users/{name}/settings", "/users/{name}", "/"),
+            true
+        );
+
+        Assertions.assertThat(templates.apply(path)).isEqualTo(expected);
+    }
+
+    @Test
+    void shouldReturnSamePathWhenNothingMatches() {
+        PathTemplates templates = new PathTemplates(Collections.singletonList("/orders/{id}"), false);
+        String path = "/users/123";
+
+        Assertions.assertThat(templates.apply(path)).isSameAs(path);
+    }
+
+    @Test
+    void shouldThrowExceptionForRelativeTemplate() {
+        Assertions.assertThatThrownBy(() -> new PathTemplates(Collections.singletonList("orders/{id}"), false))
+            .isInstanceOf(IllegalStateException.class);
+    }
+}
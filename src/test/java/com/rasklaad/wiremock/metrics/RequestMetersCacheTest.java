@@ -0,0 +1,158 @@
+package com.rasklaad.wiremock.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+public class RequestMetersCacheTest {
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private RequestMeters createMeters(MetersGroup group, String method, int status) {
+        // new meter for every call, like registry does after evicted meters were removed
+        DistributionSummary summary = DistributionSummary.builder("test").register(new SimpleMeterRegistry());
+        return new RequestMeters(method, status, summary, null, null, null, null, null);
+    }
+
+    private static RequestEvent event() {
+        RequestEvent event = new RequestEvent();
+        event.method = "GET";
+        event.status = 200;
+        event.totalTime = 1;
+        return event;
+    }
+
+    @Test
+    void shouldReturnSameMetersForSameKey() {
+        RequestMetersCache cache = new RequestMetersCache(this::createMeters);
+
+        RequestMeters first = cache.get("/test", "GET", 200);
+
+        Assertions.assertThat(cache.get(new String("/test"), "GET", 200)).isSameAs(first);
+        Assertions.assertThat(cache.get("/test", "POST", 200)).isNotSameAs(first);
+        Assertions.assertThat(cache.get("/test", "GET", 404)).isNotSameAs(first);
+    }
+
+    @Test
+    void shouldUseOverflowPathWhenBudgetIsSpent() {
+        LongAdder overflows = new LongAdder();
+        RequestMetersCache cache = new RequestMetersCache(this::createMeters, 1, overflows::increment);
+
+        RequestMeters first = cache.get("/first", "GET", 200);
+        RequestMeters second = cache.get("/second", "GET", 200);
+        RequestMeters third = cache.get("/third", "GET", 200);
+
+        Assertions.assertThat(second).isNotSameAs(first).isSameAs(third);
+        Assertions.assertThat(overflows.sum()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldRecreateOverflowPathAfterEviction() throws InterruptedException {
+        RequestMetersCache cache = new RequestMetersCache(this::createMeters, 1, () -> { });
+        List<RequestMeters> evicted = new ArrayList<>();
+
+        cache.get("/first", "GET", 200);
+        RequestMeters overflow = cache.get("/second", "GET", 200);
+        cache.evictIdle(0, evicted::add);
+        Thread.sleep(1L);
+        cache.evictIdle(0, evicted::add);
+        cache.get("/first", "GET", 200);
+
+        Assertions.assertThat(evicted).contains(overflow);
+        RequestMeters recreated = cache.get("/third", "GET", 200);
+        Assertions.assertThat(recreated).isNotSameAs(overflow).isSameAs(cache.get("/fourth", "GET", 200));
+        Assertions.assertThat(recreated.tryRecord(event())).isTrue();
+    }
+
+    @Test
+    void shouldFreeBudgetWhenPathIsEvicted() throws InterruptedException {
+        LongAdder overflows = new LongAdder();
+        RequestMetersCache cache = new RequestMetersCache(this::createMeters, 1, overflows::increment);
+        List<RequestMeters> evicted = new ArrayList<>();
+
+        RequestMeters first = cache.get("/first", "GET", 200);
+        // first sweep only notices that meters were recorded since creation
+        cache.evictIdle(0, evicted::add);
+        Thread.sleep(1L);
+        cache.evictIdle(0, evicted::add);
+
+        Assertions.assertThat(evicted).containsExactly(first);
+        Assertions.assertThat(first.tryRecord(event())).isFalse();
+        Assertions.assertThat(cache.get("/second", "GET", 200)).isNotSameAs(first);
+        Assertions.assertThat(overflows.sum()).isZero();
+    }
+
+    @Test
+    void shouldRecordGroupStatsOnceEventLandedInMeters() {
+        MetersGroup group = new MetersGroup("/test");
+        LiveStats.Window window = new LiveStats().window(group, null);
+        SlowestRequests.Ring ring = new SlowestRequests(2).ring(group, null);
+        RequestMeters meters = createMeters(group, "GET", 200);
+        meters.recordLive(window);
+        meters.recordSlowest(ring);
+        RequestEvent event = event();
+
+        // a failed try is retried in new meters of the same group, so it must not touch the window or slowest requests
+        Assertions.assertThat(meters.tryRecord(event)).isTrue();
+        Assertions.assertThat(window.snapshot(LiveStats.currentSecond() + 1)).isNull();
+        Assertions.assertThat(ring.snapshot()).isNull();
+
+        meters.recordGroup(event);
+        Map<String, Object> snapshot = window.snapshot(LiveStats.currentSecond() + 1);
+        Assertions.assertThat(snapshot).isNotNull();
+        Assertions.assertThat(((Map<?, ?>) snapshot.get("60s")).get("rps")).isEqualTo(1.0 / 60);
+        Assertions.assertThat((List<?>) ring.snapshot().get("requests")).hasSize(1);
+    }
+
+    @Test
+    void shouldNotLoseEventsWhenEvictingConcurrently() throws InterruptedException {
+        RequestMetersCache cache = new RequestMetersCache(this::createMeters);
+        LongAdder recordedInEvicted = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread sweeper = new Thread(() -> {
+            while (running.get()) {
+                cache.evictIdle(0, meters -> recordedInEvicted.add(count(meters)));
+            }
+        });
+        sweeper.start();
+
+        int threads = 4;
+        int eventsPerThread = 20_000;
+        List<Thread> recorders = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread recorder = new Thread(() -> {
+                RequestEvent event = event();
+                for (int j = 0; j < eventsPerThread; j++) {
+                    while (!cache.get("/test", "GET", 200).tryRecord(event)) {
+                        // evicted concurrently
+                    }
+                }
+            });
+            recorder.start();
+            recorders.add(recorder);
+        }
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+        running.set(false);
+        sweeper.join();
+
+        // event that landed in meters while they were evicted is recorded again, so it can be counted twice here,
+        // but never in meters that stay registered
+        long remaining = count(cache.get("/test", "GET", 200));
+        Assertions.assertThat(remaining).isLessThanOrEqualTo((long) threads * eventsPerThread);
+        Assertions.assertThat(recordedInEvicted.sum() + remaining).isGreaterThanOrEqualTo((long) threads * eventsPerThread);
+    }
+
+    private static long count(RequestMeters meters) {
+        return meters.meters().stream()
+            .mapToLong(meter -> ((DistributionSummary) meter).count())
+            .sum();
+    }
+}
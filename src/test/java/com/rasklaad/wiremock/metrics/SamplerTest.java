@@ -0,0 +1,58 @@
+package com.rasklaad.wiremock.metrics;
+
+import org.assertj.core.api.Assertions;
+import org.assertj.core.data.Offset;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class SamplerTest {
+
+    @Test
+    void shouldSampleExactFractionWithFixedRatio() {
+        Sampler sampler = Sampler.fixed(0.1);
+
+        int sampled = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (sampler.sample()) {
+                sampled++;
+            }
+        }
+
+        // initial credit is random, so first sample can come anywhere within first 10 events
+        Assertions.assertThat(sampled).isBetween(99, 101);
+    }
+
+    @Test
+    void shouldSampleEverythingWithRatioOne() {
+        Sampler sampler = Sampler.fixed(1.0);
+
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertThat(sampler.sample()).isTrue();
+        }
+    }
+
+    @Test
+    void shouldLowerRatioWhenRateIsAboveTarget() {
+        Sampler sampler = Sampler.adaptive(100);
+        for (int i = 0; i < 1000; i++) {
+            sampler.sample();
+        }
+
+        sampler.adjust(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+
+        Assertions.assertThat(sampler.ratio()).isCloseTo(0.1, Offset.offset(0.01));
+    }
+
+    @Test
+    void shouldKeepRatioOneWhenRateIsBelowTarget() {
+        Sampler sampler = Sampler.adaptive(10_000);
+        for (int i = 0; i < 1000; i++) {
+            sampler.sample();
+        }
+
+        sampler.adjust(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+
+        Assertions.assertThat(sampler.ratio()).isEqualTo(1.0);
+    }
+}
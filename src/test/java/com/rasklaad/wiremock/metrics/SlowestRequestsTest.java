@@ -0,0 +1,55 @@
+package com.rasklaad.wiremock.metrics;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class SlowestRequestsTest {
+
+    private static RequestEvent event(String url, int totalTime) {
+        RequestEvent event = new RequestEvent();
+        event.method = "GET";
+        event.url = url;
+        event.status = 200;
+        event.totalTime = totalTime;
+        return event;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> urls(Map<String, Object> snapshot) {
+        return ((List<Map<String, Object>>) snapshot.get("requests")).stream()
+            .map(request -> request.get("url"))
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    void shouldKeepSlowestRequestsFromSlowestToFastest() {
+        SlowestRequests.Ring ring = new SlowestRequests(3).ring(new MetersGroup("/test"), null);
+        int[] totalTimes = {5, 50, 1, 20, 30, 2, 40};
+        for (int totalTime : totalTimes) {
+            ring.offer(event("/test?t=" + totalTime, totalTime));
+        }
+
+        Map<String, Object> snapshot = ring.snapshot();
+
+        Assertions.assertThat(snapshot).containsEntry("path", "/test").doesNotContainKey("instance");
+        Assertions.assertThat(urls(snapshot)).containsExactly("/test?t=50", "/test?t=40", "/test?t=30");
+    }
+
+    @Test
+    void shouldPurgeRingsOfRetiredGroups() {
+        SlowestRequests slowestRequests = new SlowestRequests(1);
+        MetersGroup group = new MetersGroup("/test");
+        slowestRequests.ring(group, "first").offer(event("/test", 5));
+        Assertions.assertThat(slowestRequests.snapshot()).hasSize(1)
+            .first().satisfies(snapshot -> Assertions.assertThat(snapshot).containsEntry("instance", "first"));
+
+        group.retire(meters -> {
+        });
+
+        Assertions.assertThat(slowestRequests.snapshot()).isEmpty();
+    }
+}
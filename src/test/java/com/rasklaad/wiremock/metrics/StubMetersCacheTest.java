@@ -0,0 +1,68 @@
+package com.rasklaad.wiremock.metrics;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.stubbing.StubMapping;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class StubMetersCacheTest {
+    private final List<RequestMeters> removed = new ArrayList<>();
+
+    private RequestMeters createMeters(MetersGroup group, String method, int status) {
+        DistributionSummary summary = DistributionSummary.builder("test").register(new SimpleMeterRegistry());
+        return new RequestMeters(method, status, summary, null, null, null, null, null);
+    }
+
+    private static MetersGroup createGroup(StubMapping stub) {
+        return new MetersGroup(stub.getRequest().getUrlMatcher().getExpected(), stub.getId().toString());
+    }
+
+    private static StubMapping stub() {
+        return WireMock.get(WireMock.urlPathEqualTo("/test")).willReturn(WireMock.ok()).build();
+    }
+
+    @Test
+    void shouldReturnSameMetersForSameStub() {
+        StubMetersCache cache = new StubMetersCache(this::createMeters, StubMetersCacheTest::createGroup);
+        StubMapping stub = stub();
+        cache.add(stub, removed::add);
+
+        RequestMeters first = cache.get(stub, "GET", 200);
+
+        Assertions.assertThat(cache.get(stub, "GET", 200)).isSameAs(first);
+        Assertions.assertThat(cache.get(stub, "GET", 500)).isNotSameAs(first);
+        Assertions.assertThat(cache.get(stub(), "GET", 200)).isNotSameAs(first);
+    }
+
+    @Test
+    void shouldDropMetersOfRemovedStub() {
+        StubMetersCache cache = new StubMetersCache(this::createMeters, StubMetersCacheTest::createGroup);
+        StubMapping stub = stub();
+        cache.add(stub, removed::add);
+        RequestMeters meters = cache.get(stub, "GET", 200);
+
+        cache.remove(stub.getId(), removed::add);
+
+        Assertions.assertThat(removed).containsExactly(meters);
+        Assertions.assertThat(meters.isEvicted()).isTrue();
+        Assertions.assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void shouldReplaceMetersOfEditedStub() {
+        StubMetersCache cache = new StubMetersCache(this::createMeters, StubMetersCacheTest::createGroup);
+        StubMapping stub = stub();
+        cache.add(stub, removed::add);
+        RequestMeters meters = cache.get(stub, "GET", 200);
+
+        cache.add(stub, removed::add);
+
+        Assertions.assertThat(removed).containsExactly(meters);
+        Assertions.assertThat(cache.get(stub, "GET", 200)).isNotSameAs(meters);
+    }
+}